@@ -0,0 +1,30 @@
+import gzip, io, uuid, random
+random.seed(7)
+def page(i):
+    rows = random.randint(3, 25); cols = random.randint(2, 7)
+    head = "".join("<th>Col %s</th>" % c for c in range(cols))
+    body = "".join("<tr>" + "".join("<td>%s</td>" % (random.choice(["Alpha","Beta &amp; Co","12,345","3.14","<a href='/x'>link</a>","<img src='a.png'>","","Q&amp;A", "  spaced   text  "])) for c in range(cols)) + "</tr>" for r in range(rows))
+    layout = "<table><tr><td><table width=100%><tr><td>nav</td><td>menu</td></tr></table></td><td>x</td></tr></table>"
+    span = "<table><tr><td rowspan=2>a</td><td colspan=2>b</td></tr><tr><td>c</td><td>d</td></tr><tr><td>e</td><td>f</td><td>g</td></tr></table>"
+    form = "<form><table><tr><td>user</td><td><input name=u></td></tr><tr><td>pass</td><td><input name=p></td></tr></table></form>"
+    charset = random.choice(["utf-8", "iso-8859-1", "windows-1252"])
+    html = "<html><head><meta charset='%s'><title>Page %d</title></head><body><h1>Sample page %d</h1><p>Some text about cities and population numbers.</p>%s<table><caption>Table %d</caption><tr>%s</tr>%s</table>%s%s<p>München café</p></body></html>" % (charset, i, i, layout if i % 2 else "", i, head, body, span if i % 3 == 0 else "", form if i % 4 == 0 else "")
+    if i % 5 == 4:
+        html = "<html><head><title>No tables %d</title></head><body><p>Just prose here, nothing tabular.</p></body></html>" % i
+    return html.encode(charset if charset != "utf-8" else "utf-8", "replace"), charset
+out = io.BytesIO()
+def member(data):
+    b = io.BytesIO()
+    with gzip.GzipFile(fileobj=b, mode="wb", mtime=0) as g: g.write(data)
+    return b.getvalue()
+info = b"software: dwtc-extractor sample corpus\r\nformat: WARC File Format 1.0\r\n"
+hdr = "WARC/1.0\r\nWARC-Type: warcinfo\r\nWARC-Date: 2014-07-10T00:00:00Z\r\nWARC-Record-ID: <urn:uuid:%s>\r\nContent-Type: application/warc-fields\r\nContent-Length: %d\r\n\r\n" % (uuid.UUID(int=0), len(info))
+out.write(member(hdr.encode() + info + b"\r\n\r\n"))
+for i in range(40):
+    body, cs = page(i)
+    http = ("HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=%s\r\nContent-Length: %d\r\n\r\n" % (cs, len(body))).encode() + body
+    url = "http://example.org/page/%d" % i
+    for typ, content, ctype in (("request", ("GET /page/%d HTTP/1.1\r\nHost: example.org\r\n\r\n" % i).encode(), "application/http; msgtype=request"), ("response", http, "application/http; msgtype=response")):
+        h = "WARC/1.0\r\nWARC-Type: %s\r\nWARC-Date: 2014-07-10T00:00:00Z\r\nWARC-Record-ID: <urn:uuid:%s>\r\nWARC-Target-URI: %s\r\nContent-Type: %s\r\nContent-Length: %d\r\n\r\n" % (typ, uuid.UUID(int=random.getrandbits(128)), url, ctype, len(content))
+        out.write(member(h.encode() + content + b"\r\n\r\n"))
+open("sample.warc.gz", "wb").write(out.getvalue())
@@ -0,0 +1,85 @@
+package webreduce.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.fuberlin.wbsg.ccrdf.DatasetJsonEncoder;
+import org.fuberlin.wbsg.ccrdf.ResultCompression;
+
+import webreduce.data.Dataset;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Compresses the JSON lines of the sample corpus, repeated to the given
+ * number of MB, with every codec and a few levels, and reports the CPU time
+ * of all threads and the wall time per GB of uncompressed results. JMH does
+ * not measure CPU time on the compression threads, so this is a plain
+ * program:
+ *
+ * java -cp target/benchmarks.jar webreduce.benchmarks.CompressionBenchmark
+ * [MB] [threads]
+ */
+public class CompressionBenchmark {
+	private static final String[] CODECS = { ResultCompression.CODEC_GZIP,
+			ResultCompression.CODEC_PARALLEL_GZIP };
+	private static final int[] LEVELS = { 1, 6, 9 };
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime
+				.getRuntime().availableProcessors();
+
+		SampleCorpus corpus = new SampleCorpus();
+		corpus.load();
+		DatasetJsonEncoder encoder = new DatasetJsonEncoder();
+		ByteArrayOutputStream lines = new ByteArrayOutputStream();
+		for (Dataset ds : corpus.datasets) {
+			encoder.encodeLine(ds);
+			encoder.writeTo(lines);
+		}
+		byte[] json = lines.toByteArray();
+		long total = (long) megabytes * 1024 * 1024;
+
+		System.out.println("codec\tlevel\tcpu s/GB\twall s/GB\tratio");
+		for (int round = 0; round < 2; round++) {
+			// the first round warms up
+			for (String codec : CODECS) {
+				for (int level : LEVELS) {
+					ResultCompression compression = new ResultCompression(
+							codec, level, threads);
+					long cpu = cpuTime();
+					long wall = System.nanoTime();
+					CountingOutputStream compressed = new CountingOutputStream(
+							ByteStreams.nullOutputStream());
+					OutputStream out = compression.compress(compressed);
+					for (long written = 0; written < total; written += json.length)
+						out.write(json);
+					out.close();
+					double gb = total / (1024.0 * 1024 * 1024);
+					if (round > 0)
+						System.out.printf("%s\t%d\t%.2f\t%.2f\t%.3f%n", codec,
+								level, (cpuTime() - cpu) / 1e9 / gb,
+								(System.nanoTime() - wall) / 1e9 / gb,
+								compressed.getCount() / (double) total);
+				}
+			}
+		}
+	}
+
+	// CPU time of all live threads, the compression threads of the pool live
+	// as long as the JVM
+	private static long cpuTime() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long sum = 0;
+		for (long id : threads.getAllThreadIds()) {
+			long time = threads.getThreadCpuTime(id);
+			if (time > 0)
+				sum += time;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,168 @@
+package webreduce.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.fuberlin.wbsg.ccrdf.DatasetJsonEncoder;
+
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import webreduce.data.Dataset;
+import webreduce.extraction.mh.features.FeaturesP1;
+import webreduce.extraction.mh.features.FeaturesP2;
+import webreduce.extraction.mh.tools.CellTools;
+import webreduce.extraction.mh.tools.TableGrid;
+import webreduce.terms.LuceneNormalizer;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * One benchmark per stage of the table extraction. Every benchmark runs its
+ * stage once over the whole sample corpus, so the scores of the stages add
+ * up to the time spent on the corpus.
+ *
+ * Run all of them, including allocation profiling, with
+ *
+ * java -jar target/benchmarks.jar -prof gc
+ *
+ * or by running this class.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExtractionBenchmarks {
+	private FeaturesP1 featuresP1;
+	private FeaturesP2 featuresP2;
+	private LuceneNormalizer normalizer;
+	private DatasetJsonEncoder jsonEncoder;
+
+	@Setup
+	public void setup() {
+		featuresP1 = new FeaturesP1();
+		featuresP2 = new FeaturesP2();
+		normalizer = new LuceneNormalizer();
+		jsonEncoder = new DatasetJsonEncoder();
+	}
+
+	@Benchmark
+	public void jsoupParse(SampleCorpus corpus, Blackhole bh) {
+		for (int i = 0; i < corpus.pages.size(); i++) {
+			bh.consume(SampleCorpus.parse(corpus.pages.get(i),
+					corpus.contentTypes.get(i)));
+		}
+	}
+
+	@Benchmark
+	public void toTable(SampleCorpus corpus, Blackhole bh) {
+		for (Element table : corpus.tables) {
+			bh.consume(corpus.tableConvert.toTable(table));
+		}
+	}
+
+	@Benchmark
+	public void featuresP1(SampleCorpus corpus, Blackhole bh) {
+		for (TableGrid table : corpus.convertedTables) {
+			bh.consume(featuresP1.computeFeatures(table));
+		}
+	}
+
+	@Benchmark
+	public void featuresP2(SampleCorpus corpus, Blackhole bh) {
+		for (TableGrid table : corpus.convertedTables) {
+			bh.consume(featuresP2.computeFeatures(table));
+		}
+	}
+
+	@Benchmark
+	public void classifyTable(SampleCorpus corpus, Blackhole bh) {
+		for (TableGrid table : corpus.convertedTables) {
+			bh.consume(corpus.tableClassification.classifyTable(table));
+		}
+	}
+
+	@Benchmark
+	public void cleanCell(SampleCorpus corpus, Blackhole bh) {
+		for (String cell : corpus.cellTexts) {
+			bh.consume(CellTools.cleanCell(cell));
+		}
+	}
+
+	@Benchmark
+	public void topNTerms(SampleCorpus corpus, Blackhole bh)
+			throws IOException {
+		for (String body : corpus.bodyTexts) {
+			bh.consume(normalizer.topNTerms(body, 100));
+		}
+	}
+
+	@Benchmark
+	public void toJson(SampleCorpus corpus, Blackhole bh) {
+		for (Dataset ds : corpus.datasets) {
+			bh.consume(ds.toJson());
+		}
+	}
+
+	// the same output as toJson, encoded to UTF-8
+	@Benchmark
+	public void encodeJson(SampleCorpus corpus, Blackhole bh) {
+		for (Dataset ds : corpus.datasets) {
+			jsonEncoder.encodeLine(ds);
+			bh.consume(jsonEncoder.getLength());
+		}
+	}
+
+	// writing the result file the way DatasetWriter did before it used the
+	// encoder, compare to writeJson
+	@Benchmark
+	public void writeToJson(SampleCorpus corpus) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new GZIPOutputStream(ByteStreams.nullOutputStream()), "UTF-8"));
+		for (Dataset ds : corpus.datasets) {
+			writer.append(ds.toJson());
+			writer.append("\n");
+		}
+		writer.close();
+	}
+
+	@Benchmark
+	public void writeJson(SampleCorpus corpus) throws IOException {
+		OutputStream output = new GZIPOutputStream(
+				ByteStreams.nullOutputStream());
+		for (Dataset ds : corpus.datasets) {
+			jsonEncoder.encodeLine(ds);
+			jsonEncoder.writeTo(output);
+		}
+		output.close();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(ExtractionBenchmarks.class.getSimpleName())
+				.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,115 @@
+package webreduce.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.fuberlin.wbsg.ccrdf.PageDecoder;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jwat.common.HttpHeader;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import webreduce.data.Dataset;
+import webreduce.extraction.DocumentMetadata;
+import webreduce.extraction.ExtractionAlgorithm;
+import webreduce.extraction.TableExtractionModule;
+import webreduce.extraction.mh.TableClassification;
+import webreduce.extraction.mh.tools.TableConvert;
+import webreduce.extraction.mh.tools.TableGrid;
+
+import com.google.common.base.Optional;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * The inputs of every stage of the extraction, computed once from the sample
+ * WARC file on the classpath (see gen_sample.py for how it was generated).
+ * Each stage's input is the output of the previous stages, so each benchmark
+ * measures a single stage on realistic data.
+ */
+@State(Scope.Benchmark)
+public class SampleCorpus {
+	private static final String SAMPLE = "/sample.warc.gz";
+
+	public Injector injector;
+	public TableConvert tableConvert;
+	public TableClassification tableClassification;
+
+	// payloads of the response records and their HTTP content types
+	public List<byte[]> pages = new ArrayList<byte[]>();
+	public List<String> contentTypes = new ArrayList<String>();
+	public List<Document> documents = new ArrayList<Document>();
+	public List<Element> tables = new ArrayList<Element>();
+	// tables which passed the conversion
+	public List<TableGrid> convertedTables = new ArrayList<TableGrid>();
+	// raw text of all cells of the converted tables
+	public List<String> cellTexts = new ArrayList<String>();
+	public List<String> bodyTexts = new ArrayList<String>();
+	public List<Dataset> datasets = new ArrayList<Dataset>();
+
+	@Setup
+	public void load() throws IOException, InterruptedException {
+		injector = Guice.createInjector(new TableExtractionModule());
+		tableConvert = new TableConvert(2, 2);
+		tableClassification = injector.getInstance(TableClassification.class);
+		ExtractionAlgorithm algorithm = injector
+				.getInstance(ExtractionAlgorithm.class);
+
+		InputStream in = SampleCorpus.class.getResourceAsStream(SAMPLE);
+		if (in == null)
+			throw new IOException("Sample corpus " + SAMPLE + " not found");
+		WarcReader reader = WarcReaderFactory.getReaderCompressed(in);
+		try {
+			WarcRecord wr;
+			while ((wr = reader.getNextRecord()) != null) {
+				if (!wr.getHeader("WARC-Type").value.equals("response"))
+					continue;
+				byte[] payload = IOUtils.toByteArray(wr.getPayloadContent());
+				String url = wr.getHeader("WARC-Target-URI").value;
+				HttpHeader httpHeader = wr.getHttpHeader();
+				String contentType = httpHeader != null ? httpHeader.contentType
+						: null;
+				pages.add(payload);
+				contentTypes.add(contentType);
+
+				Document doc = parse(payload, contentType);
+				documents.add(doc);
+				bodyTexts.add(doc.select("body").text());
+				datasets.addAll(algorithm.extract(doc, new DocumentMetadata(0,
+						0, "sample.warc.gz", url)));
+				for (Element table : doc.getElementsByTag("table")) {
+					tables.add(table);
+					Optional<TableGrid> converted = tableConvert.toTable(table);
+					if (!converted.isPresent())
+						continue;
+					TableGrid grid = converted.get();
+					convertedTables.add(grid);
+					for (int r = 0; r < grid.getHeight(); r++) {
+						for (int c = 0; c < grid.getWidth(); c++) {
+							Element cell = grid.getCell(r, c);
+							if (cell != null)
+								cellTexts.add(cell.text());
+						}
+					}
+				}
+			}
+		} finally {
+			reader.close();
+			in.close();
+		}
+	}
+
+	// the way the worker parses a payload
+	public static Document parse(byte[] payload, String contentType) {
+		return Jsoup.parse(PageDecoder.decode(payload, contentType), "");
+	}
+}
@@ -0,0 +1,362 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.ReplaceableItem;
+
+/**
+ * Puts statistics into a SimpleDB domain on a background thread, so the
+ * worker threads never wait for SimpleDB. Every item is appended to a local
+ * spool file first and then queued in memory. The shipper thread puts the
+ * queued items in batches of up to 25 and retries failed batches with
+ * exponential backoff. A second file holds the offset in the spool file up
+ * to which the items are in SimpleDB, the items after it are shipped again
+ * when the JVM is restarted. If the queue is full, the items are read back
+ * from the spool file later. There is one handler per domain and JVM, see
+ * {@link #get(AmazonSimpleDBClient, String, File)}.
+ */
+class AsyncStatHandler implements StatHandler {
+	private static Logger log = Logger.getLogger(AsyncStatHandler.class);
+
+	// items per BatchPutAttributes request, the maximum of SimpleDB
+	static final int BATCH_SIZE = 25;
+	private static final int QUEUE_SIZE = 1024;
+	private static final long MIN_BACKOFF_MS = 1000;
+	private static final long MAX_BACKOFF_MS = 60 * 1000;
+
+	private static final Map<String, AsyncStatHandler> handlers = new HashMap<String, AsyncStatHandler>();
+
+	private final AmazonSimpleDBClient client;
+	private final String domain;
+	private final RandomAccessFile spool;
+	private final RandomAccessFile shipped;
+	private final BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(
+			QUEUE_SIZE);
+	// guarded by this, like the files: the end of the items in SimpleDB and
+	// the start of the spooled items that are not queued, or -1 if all are
+	private long shippedTo;
+	private long unqueuedFrom = -1;
+
+	private static class Item {
+		final String key;
+		final Map<String, String> data;
+		// end of the item in the spool file, -1 if it could not be spooled
+		final long end;
+
+		Item(String key, Map<String, String> data, long end) {
+			this.key = key;
+			this.data = data;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * @return the handler of the domain, which is created and started with
+	 *         the given client and spool directory if there is none yet
+	 */
+	public static synchronized AsyncStatHandler get(
+			AmazonSimpleDBClient client, String domain, File spoolDir)
+			throws IOException {
+		AsyncStatHandler handler = handlers.get(domain);
+		if (handler == null) {
+			handler = new AsyncStatHandler(client, domain, spoolDir);
+			handler.start();
+			handlers.put(domain, handler);
+		}
+		return handler;
+	}
+
+	AsyncStatHandler(AmazonSimpleDBClient client, String domain, File spoolDir)
+			throws IOException {
+		this.client = client;
+		this.domain = domain;
+		spoolDir.mkdirs();
+		spool = new RandomAccessFile(new File(spoolDir, domain + ".spool"),
+				"rw");
+		if (spool.getChannel().tryLock() == null) {
+			spool.close();
+			throw new IOException("Stats spool of " + domain + " in "
+					+ spoolDir + " is used by another process");
+		}
+		shipped = new RandomAccessFile(new File(spoolDir, domain
+				+ ".shipped"), "rw");
+		shippedTo = shipped.length() >= 8 ? shipped.readLong() : 0;
+
+		// an item that was not written completely is cut off
+		long end = Math.min(shippedTo, spool.length());
+		Item item;
+		while ((item = read(end)) != null)
+			end = item.end;
+		spool.setLength(end);
+		if (shippedTo > end)
+			writeShipped(end);
+		if (shippedTo < end) {
+			log.info("Shipping " + (end - shippedTo)
+					+ " spooled bytes of stats to " + domain);
+			unqueuedFrom = shippedTo;
+		}
+	}
+
+	private void start() {
+		Thread shipper = new Thread("stats-" + domain) {
+			@Override
+			public void run() {
+				ship();
+			}
+		};
+		shipper.setDaemon(true);
+		shipper.start();
+	}
+
+	@Override
+	public void addStats(String key, Map<String, String> data) {
+		data = new LinkedHashMap<String, String>(data);
+		synchronized (this) {
+			long start = -1;
+			long end = -1;
+			try {
+				start = spool.length();
+				end = append(start, key, data);
+			} catch (IOException e) {
+				log.warn("Unable to spool stats of " + key, e);
+				try {
+					if (start >= 0)
+						spool.setLength(start);
+				} catch (IOException e1) {
+					// the next start cuts off the item
+				}
+			}
+			if (end < 0) {
+				// not in the spool file, so the queue is the only way to
+				// SimpleDB, even while spooled items wait for space in it
+				if (!queue.offer(new Item(key, data, end)))
+					log.warn("Stats queue of " + domain + " is full, losing "
+							+ key);
+			} else if (unqueuedFrom < 0
+					&& !queue.offer(new Item(key, data, end))) {
+				unqueuedFrom = start;
+			}
+		}
+	}
+
+	/**
+	 * Does nothing, items are shipped in the background as soon as possible.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	private void ship() {
+		createDomain();
+		List<Item> batch = new ArrayList<Item>(BATCH_SIZE);
+		Set<String> keys = new HashSet<String>();
+		while (true) {
+			try {
+				refill();
+				batch.add(queue.take());
+				keys.add(batch.get(0).key);
+				// an item name may only occur once per request
+				while (batch.size() < BATCH_SIZE) {
+					Item next = queue.peek();
+					if (next == null || !keys.add(next.key))
+						break;
+					batch.add(queue.poll());
+				}
+				put(batch);
+				markShipped(batch);
+			} catch (InterruptedException e) {
+				return;
+			} catch (Exception e) {
+				// the items stay in the spool file
+				log.error("Unable to ship stats to " + domain, e);
+				backoff(MAX_BACKOFF_MS);
+			} finally {
+				batch.clear();
+				keys.clear();
+			}
+		}
+	}
+
+	private void createDomain() {
+		long backoff = MIN_BACKOFF_MS;
+		while (true) {
+			try {
+				if (!client.listDomains().getDomainNames().contains(domain))
+					client.createDomain(new CreateDomainRequest(domain));
+				return;
+			} catch (Exception e) {
+				log.warn("Unable to create SDB domain " + domain, e);
+				backoff = backoff(backoff);
+			}
+		}
+	}
+
+	private void put(List<Item> batch) {
+		List<ReplaceableItem> items = new ArrayList<ReplaceableItem>(
+				batch.size());
+		for (Item item : batch) {
+			List<ReplaceableAttribute> attributes = new ArrayList<ReplaceableAttribute>(
+					item.data.size());
+			for (Map.Entry<String, String> dataEntry : item.data.entrySet()) {
+				attributes.add(new ReplaceableAttribute(dataEntry.getKey(),
+						dataEntry.getValue(), false));
+			}
+			items.add(new ReplaceableItem(item.key, attributes));
+		}
+		BatchPutAttributesRequest req = new BatchPutAttributesRequest(domain,
+				items);
+
+		long backoff = MIN_BACKOFF_MS;
+		while (true) {
+			try {
+				client.batchPutAttributes(req);
+				return;
+			} catch (AmazonServiceException e) {
+				if ("NoSuchDomain".equals(e.getErrorCode())) {
+					createDomain();
+				} else if (e.getErrorType() == AmazonServiceException.ErrorType.Client) {
+					// retrying does not help, e.g. for too many attributes
+					log.error("SDB rejected stats of " + keys(batch)
+							+ ", dropping them", e);
+					return;
+				} else {
+					log.warn(e);
+					backoff = backoff(backoff);
+				}
+			} catch (Exception e) {
+				log.warn(e);
+				backoff = backoff(backoff);
+			}
+		}
+	}
+
+	// sleeps and returns the next, doubled backoff
+	private static long backoff(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return Math.min(2 * millis, MAX_BACKOFF_MS);
+	}
+
+	private static List<String> keys(List<Item> batch) {
+		List<String> keys = new ArrayList<String>(batch.size());
+		for (Item item : batch)
+			keys.add(item.key);
+		return keys;
+	}
+
+	// queues the items of the spool file that did not fit into the queue
+	private synchronized void refill() throws IOException {
+		if (unqueuedFrom < 0)
+			return;
+		long end = spool.length();
+		Item item;
+		while (unqueuedFrom < end && queue.remainingCapacity() > 0
+				&& (item = read(unqueuedFrom)) != null) {
+			queue.add(item);
+			unqueuedFrom = item.end;
+		}
+		if (unqueuedFrom >= end)
+			unqueuedFrom = -1;
+	}
+
+	private synchronized void markShipped(List<Item> batch) throws IOException {
+		long end = -1;
+		for (Item item : batch)
+			end = Math.max(end, item.end);
+		if (end > shippedTo)
+			writeShipped(end);
+		// the spool file starts over once everything in it was shipped,
+		// after the offset is reset, so the new items can not be skipped
+		if (shippedTo > 0 && shippedTo == spool.length() && queue.isEmpty()
+				&& unqueuedFrom < 0) {
+			writeShipped(0);
+			spool.setLength(0);
+		}
+	}
+
+	private void writeShipped(long offset) throws IOException {
+		shipped.seek(0);
+		shipped.writeLong(offset);
+		shipped.getChannel().force(false);
+		shippedTo = offset;
+	}
+
+	// appends an item, which survives a crash of the JVM or the machine
+	// afterwards, and returns its end
+	private long append(long start, String key, Map<String, String> data)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeUTF(key);
+		out.writeInt(data.size());
+		for (Map.Entry<String, String> e : data.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeUTF(e.getValue());
+		}
+		out.close();
+		byte[] item = bytes.toByteArray();
+		int length = item.length - 4;
+		item[0] = (byte) (length >>> 24);
+		item[1] = (byte) (length >>> 16);
+		item[2] = (byte) (length >>> 8);
+		item[3] = (byte) length;
+		spool.seek(start);
+		spool.write(item);
+		spool.getChannel().force(false);
+		return start + item.length;
+	}
+
+	// the item at the given offset of the spool file, null if there is no
+	// complete item
+	private Item read(long start) throws IOException {
+		long length = spool.length();
+		if (start + 4 > length)
+			return null;
+		spool.seek(start);
+		int size = spool.readInt();
+		if (size < 0 || start + 4 + size > length)
+			return null;
+		byte[] item = new byte[size];
+		spool.readFully(item);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				item));
+		try {
+			String key = in.readUTF();
+			int attributes = in.readInt();
+			Map<String, String> data = new LinkedHashMap<String, String>();
+			for (int i = 0; i < attributes; i++)
+				data.put(in.readUTF(), in.readUTF());
+			return new Item(key, data, start + 4 + size);
+		} catch (IOException e) {
+			log.warn("Corrupt stats item at " + start + " of the spool of "
+					+ domain);
+			return null;
+		}
+	}
+}
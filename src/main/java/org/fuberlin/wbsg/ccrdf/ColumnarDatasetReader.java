@@ -0,0 +1,304 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.fuberlin.wbsg.ccrdf.ColumnarFormat.ChunkInput;
+import org.fuberlin.wbsg.ccrdf.ColumnarFormat.Column;
+import org.jsoup.Jsoup;
+
+import webreduce.data.Dataset;
+import webreduce.data.HeaderPosition;
+import webreduce.data.TableType;
+import webreduce.extraction.DocumentMetadata;
+import webreduce.extraction.ExtractionAlgorithm;
+import webreduce.extraction.TableExtractionModule;
+
+import com.google.inject.Guice;
+
+/**
+ * Reads columnar result files written by {@link ColumnarDatasetWriter}. Only
+ * the chunks of the requested columns are read and decompressed, the other
+ * fields of the returned datasets keep their default values.
+ * {@link #main(String[])} writes the datasets extracted from a WARC file in
+ * the columnar format and compares them to the ones read back.
+ */
+public class ColumnarDatasetReader implements Closeable {
+	// footer start and magic at the end of the file
+	private static final int TRAILER_SIZE = 8 + 4;
+
+	private final RandomAccessFile file;
+	// position in the footer of every column, -1 if the file does not have it
+	private final int[] columnIndex = new int[Column.values().length];
+	private final int[] blockRows;
+	private final long[][] chunkStarts;
+	private final int[][] chunkSizes;
+	private final int[][] chunkLengths;
+	private final Inflater inflater = new Inflater();
+
+	public ColumnarDatasetReader(File f) throws IOException {
+		file = new RandomAccessFile(f, "r");
+		try {
+			byte[] magic = new byte[4];
+			file.readFully(magic);
+			int version = file.readInt();
+			if (!Arrays.equals(magic, ColumnarFormat.MAGIC))
+				throw new IOException(f + " is not a columnar result file");
+			if (version != ColumnarFormat.VERSION)
+				throw new IOException("Unsupported version " + version + " of "
+						+ f);
+			long length = file.length();
+			file.seek(length - TRAILER_SIZE);
+			long footerStart = file.readLong();
+			file.readFully(magic);
+			if (!Arrays.equals(magic, ColumnarFormat.MAGIC) || footerStart < 8
+					|| footerStart > length - TRAILER_SIZE)
+				throw new IOException(f + " is incomplete");
+
+			byte[] footer = new byte[(int) (length - TRAILER_SIZE - footerStart)];
+			file.seek(footerStart);
+			file.readFully(footer);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					footer));
+			Arrays.fill(columnIndex, -1);
+			int columns = in.readInt();
+			for (int i = 0; i < columns; i++) {
+				String name = in.readUTF();
+				for (Column column : Column.values()) {
+					if (column.name().equals(name))
+						columnIndex[column.ordinal()] = i;
+				}
+			}
+			int blocks = in.readInt();
+			blockRows = new int[blocks];
+			chunkStarts = new long[blocks][columns];
+			chunkSizes = new int[blocks][columns];
+			chunkLengths = new int[blocks][columns];
+			for (int b = 0; b < blocks; b++) {
+				blockRows[b] = in.readInt();
+				for (int i = 0; i < columns; i++) {
+					chunkStarts[b][i] = in.readLong();
+					chunkSizes[b][i] = in.readInt();
+					chunkLengths[b][i] = in.readInt();
+				}
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	public int getBlockCount() {
+		return blockRows.length;
+	}
+
+	/**
+	 * @return number of datasets in the file
+	 */
+	public long getRowCount() {
+		long rows = 0;
+		for (int n : blockRows)
+			rows += n;
+		return rows;
+	}
+
+	/**
+	 * @return the datasets of a block, with only the given columns set
+	 */
+	public List<Dataset> readBlock(int block, EnumSet<Column> columns)
+			throws IOException {
+		int rows = blockRows[block];
+		List<Dataset> result = new ArrayList<Dataset>(rows);
+		for (int r = 0; r < rows; r++)
+			result.add(new Dataset());
+		for (Column column : columns) {
+			int i = columnIndex[column.ordinal()];
+			if (i < 0)
+				throw new IOException("File has no column " + column);
+			ChunkInput in = readChunk(chunkStarts[block][i],
+					chunkSizes[block][i], chunkLengths[block][i]);
+			readColumn(column, in, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return all datasets of the file, with only the given columns set
+	 */
+	public List<Dataset> readAll(EnumSet<Column> columns) throws IOException {
+		List<Dataset> result = new ArrayList<Dataset>();
+		for (int b = 0; b < getBlockCount(); b++)
+			result.addAll(readBlock(b, columns));
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		file.close();
+	}
+
+	private ChunkInput readChunk(long start, int size, int length)
+			throws IOException {
+		byte[] compressed = new byte[size];
+		file.seek(start);
+		file.readFully(compressed);
+		byte[] bytes = new byte[length];
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			int n = 0;
+			while (n < length && !inflater.finished()) {
+				int inflated = inflater.inflate(bytes, n, length - n);
+				if (inflated == 0 && inflater.needsInput())
+					break;
+				n += inflated;
+			}
+			if (n != length)
+				throw new IOException("Truncated chunk at " + start);
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt chunk at " + start, e);
+		}
+		return new ChunkInput(bytes, length);
+	}
+
+	private void readColumn(Column column, ChunkInput in, List<Dataset> rows)
+			throws IOException {
+		long last = 0;
+		String[] terms = null;
+		if (column == Column.TERM_SET) {
+			terms = new String[in.readLength() + 1];
+			for (int t = 1; t < terms.length; t++)
+				terms[t] = in.readString();
+		}
+		for (Dataset ds : rows) {
+			switch (column) {
+			case URL:
+				ds.url = in.readString();
+				break;
+			case S3_LINK:
+				ds.s3Link = in.readString();
+				break;
+			case RECORD_OFFSET:
+				last += in.readSigned();
+				ds.recordOffset = last;
+				break;
+			case RECORD_END_OFFSET:
+				last += in.readSigned();
+				ds.recordEndOffset = last;
+				break;
+			case TABLE_NUM:
+				ds.tableNum = (int) in.readSigned();
+				break;
+			case TABLE_TYPE:
+				String tableType = in.readString();
+				ds.tableType = tableType == null ? null : TableType
+						.valueOf(tableType);
+				break;
+			case HEADER_POSITION:
+				String headerPosition = in.readString();
+				ds.headerPosition = headerPosition == null ? null
+						: HeaderPosition.valueOf(headerPosition);
+				break;
+			case HAS_HEADER:
+				ds.hasHeader = in.read() != 0;
+				break;
+			case TITLE:
+				ds.setTitle(in.readString());
+				break;
+			case PAGE_TITLE:
+				ds.setPageTitle(in.readString());
+				break;
+			case TERM_SET:
+				int count = in.readLength();
+				if (count == 0)
+					break;
+				ds.termSet = new String[count - 1];
+				for (int t = 0; t < count - 1; t++) {
+					long id = in.readVarint();
+					if (id >= terms.length)
+						throw new IOException("Unknown term " + id);
+					ds.termSet[t] = terms[(int) id];
+				}
+				break;
+			case RELATION:
+				int columns = in.readLength();
+				if (columns == 0)
+					break;
+				ds.relation = new String[columns - 1][];
+				for (int c = 0; c < columns - 1; c++) {
+					int cells = in.readLength();
+					if (cells == 0)
+						continue;
+					ds.relation[c] = new String[cells - 1];
+					for (int r = 0; r < cells - 1; r++)
+						ds.relation[c][r] = in.readString();
+				}
+				break;
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: " + ColumnarDatasetReader.class.getName()
+					+ " file.warc.gz");
+			System.exit(1);
+		}
+		ExtractionAlgorithm algorithm = Guice.createInjector(
+				new TableExtractionModule()).getInstance(
+				ExtractionAlgorithm.class);
+		List<Dataset> datasets = new ArrayList<Dataset>();
+		ExtractionPipeline.WarcRecordReader reader = new ExtractionPipeline.WarcRecordReader(
+				new FileInputStream(args[0]));
+		try {
+			ExtractionPipeline.RecordWithOffsetsAndURL item;
+			while ((item = reader.next()) != null) {
+				String html = PageDecoder.decode(item.bytes, item.contentType);
+				datasets.addAll(algorithm.extract(Jsoup.parse(html, ""),
+						new DocumentMetadata(0, 0, args[0], item.url)));
+			}
+		} finally {
+			reader.close();
+		}
+
+		File f = File.createTempFile("datasets", ".columnar");
+		f.deleteOnExit();
+		ColumnarDatasetWriter writer = new ColumnarDatasetWriter(
+				new FileOutputStream(f));
+		writer.handle(datasets);
+		writer.close();
+		ColumnarDatasetReader columnar = new ColumnarDatasetReader(f);
+		List<Dataset> read;
+		try {
+			read = columnar.readAll(EnumSet.allOf(Column.class));
+		} finally {
+			columnar.close();
+		}
+		int mismatches = 0;
+		for (int i = 0; i < datasets.size(); i++) {
+			String expected = datasets.get(i).toJson();
+			String actual = read.get(i).toJson();
+			if (!expected.equals(actual)) {
+				mismatches++;
+				System.out.println("mismatch for a table of "
+						+ datasets.get(i).url + ":\n" + expected + "\n"
+						+ actual);
+			}
+		}
+		System.out.println(datasets.size() + " datasets compared, "
+				+ mismatches + " mismatches, " + f.length() + " bytes");
+	}
+}
@@ -0,0 +1,251 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import org.fuberlin.wbsg.ccrdf.ColumnarFormat.ChunkOutput;
+import org.fuberlin.wbsg.ccrdf.ColumnarFormat.Column;
+import org.fuberlin.wbsg.ccrdf.DatasetWriter.TimedOutputStream;
+
+import webreduce.data.Dataset;
+import webreduce.extraction.StatsKeeper;
+
+/**
+ * Writes extracted datasets in the columnar format described in
+ * {@link ColumnarFormat}. Rows are collected per column until a block is
+ * full, then every column of the block is deflated and written, so only one
+ * block is held in memory. The footer is written on close. The time spent
+ * collecting rows, deflating blocks and writing them is recorded as the stages
+ * SERIALIZE, COMPRESS and UPLOAD of the given {@link StatsKeeper}.
+ */
+public class ColumnarDatasetWriter implements ExtractionPipeline.ResultHandler,
+		Closeable {
+	// a block ends after this many rows, or when its cells take more than
+	// BLOCK_BYTES uncompressed
+	static final int BLOCK_ROWS = 1024;
+	static final int BLOCK_BYTES = 4 * 1024 * 1024;
+
+	private static final Column[] columns = Column.values();
+
+	private final TimedOutputStream output;
+	private final StatsKeeper stats;
+	private final ChunkOutput[] chunks = new ChunkOutput[columns.length];
+	// term dictionary of the current block, ids start at 1, 0 is null
+	private final Map<String, Integer> termIds = new HashMap<String, Integer>();
+	private final ChunkOutput terms = new ChunkOutput(16 * 1024);
+	private final Deflater deflater;
+	private final byte[] deflated = new byte[64 * 1024];
+
+	private int blockRows = 0;
+	private long lastOffset = 0;
+	private long lastEndOffset = 0;
+	// position of the next byte in the file
+	private long position = 0;
+	// rows and chunk positions of the written blocks, for the footer
+	private final List<Integer> blockSizes = new ArrayList<Integer>();
+	private final ChunkOutput index = new ChunkOutput(1024);
+	private final DataOutputStream indexOutput = new DataOutputStream(index);
+	private boolean closed = false;
+
+	public ColumnarDatasetWriter(OutputStream output) throws IOException {
+		this(output, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param level
+	 *            deflate level of the chunks
+	 */
+	public ColumnarDatasetWriter(OutputStream output, int level)
+			throws IOException {
+		this(output, level, new StatsKeeper.NullStats());
+	}
+
+	/**
+	 * @param level
+	 *            deflate level of the chunks
+	 */
+	public ColumnarDatasetWriter(OutputStream output, int level,
+			StatsKeeper stats) throws IOException {
+		this.output = new TimedOutputStream(output);
+		this.stats = stats;
+		this.deflater = new Deflater(level);
+		for (int i = 0; i < columns.length; i++)
+			chunks[i] = new ChunkOutput(16 * 1024);
+		DataOutputStream header = new DataOutputStream(this.output);
+		header.write(ColumnarFormat.MAGIC);
+		header.writeInt(ColumnarFormat.VERSION);
+		header.flush();
+		position = header.size();
+	}
+
+	public void write(Dataset ds) throws IOException {
+		long start = System.nanoTime();
+		chunk(Column.URL).writeString(ds.url);
+		chunk(Column.S3_LINK).writeString(ds.s3Link);
+		chunk(Column.RECORD_OFFSET).writeSigned(ds.recordOffset - lastOffset);
+		lastOffset = ds.recordOffset;
+		chunk(Column.RECORD_END_OFFSET).writeSigned(
+				ds.recordEndOffset - lastEndOffset);
+		lastEndOffset = ds.recordEndOffset;
+		chunk(Column.TABLE_NUM).writeSigned(ds.tableNum);
+		chunk(Column.TABLE_TYPE).writeString(
+				ds.tableType == null ? null : ds.tableType.name());
+		chunk(Column.HEADER_POSITION).writeString(
+				ds.headerPosition == null ? null : ds.headerPosition.name());
+		chunk(Column.HAS_HEADER).write(ds.hasHeader ? 1 : 0);
+		chunk(Column.TITLE).writeString(
+				ColumnarFormat.getString(ColumnarFormat.TITLE_FIELD, ds));
+		chunk(Column.PAGE_TITLE).writeString(
+				ColumnarFormat.getString(ColumnarFormat.PAGE_TITLE_FIELD, ds));
+
+		ChunkOutput termSet = chunk(Column.TERM_SET);
+		if (ds.termSet == null) {
+			termSet.write(0);
+		} else {
+			termSet.writeVarint(ds.termSet.length + 1L);
+			for (String term : ds.termSet)
+				termSet.writeVarint(termId(term));
+		}
+
+		ChunkOutput relation = chunk(Column.RELATION);
+		if (ds.relation == null) {
+			relation.write(0);
+		} else {
+			relation.writeVarint(ds.relation.length + 1L);
+			for (String[] column : ds.relation) {
+				if (column == null) {
+					relation.write(0);
+					continue;
+				}
+				relation.writeVarint(column.length + 1L);
+				for (String cell : column)
+					relation.writeString(cell);
+			}
+		}
+
+		blockRows++;
+		stats.recordTime(StatsKeeper.STAGES.SERIALIZE, System.nanoTime()
+				- start);
+		if (blockRows >= BLOCK_ROWS || relation.size() >= BLOCK_BYTES)
+			writeBlock();
+	}
+
+	@Override
+	public void handle(List<Dataset> docResult) throws IOException {
+		for (Dataset ds : docResult) {
+			write(ds);
+		}
+	}
+
+	/**
+	 * Writes the last block and the footer and closes the output.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		long uploadBefore;
+		try {
+			if (blockRows > 0)
+				writeBlock();
+			ChunkOutput footer = new ChunkOutput(index.size() + 1024);
+			DataOutputStream out = new DataOutputStream(footer);
+			out.writeInt(columns.length);
+			for (Column column : columns)
+				out.writeUTF(column.name());
+			out.writeInt(blockSizes.size());
+			// the index holds the chunk positions of every block, written
+			// after its number of rows
+			int entrySize = columns.length * (8 + 4 + 4);
+			for (int b = 0; b < blockSizes.size(); b++) {
+				out.writeInt(blockSizes.get(b));
+				out.write(index.buffer(), b * entrySize, entrySize);
+			}
+			out.writeLong(position);
+			out.write(ColumnarFormat.MAGIC);
+			uploadBefore = output.nanos;
+			output.write(footer.buffer(), 0, footer.size());
+		} finally {
+			deflater.end();
+			output.close();
+		}
+		stats.recordTime(StatsKeeper.STAGES.UPLOAD, output.nanos
+				- uploadBefore);
+	}
+
+	private ChunkOutput chunk(Column column) {
+		return chunks[column.ordinal()];
+	}
+
+	private int termId(String term) {
+		if (term == null)
+			return 0;
+		Integer id = termIds.get(term);
+		if (id == null) {
+			id = termIds.size() + 1;
+			termIds.put(term, id);
+			terms.writeString(term);
+		}
+		return id;
+	}
+
+	// writes of the deflated chunks to the output are not part of the
+	// compression
+	private void writeBlock() throws IOException {
+		long blockStart = System.nanoTime();
+		long uploadBefore = output.nanos;
+		for (int i = 0; i < columns.length; i++) {
+			ChunkOutput chunk = chunks[i];
+			long start = position;
+			deflater.reset();
+			int length = chunk.size();
+			if (columns[i] == Column.TERM_SET) {
+				// the dictionary goes in front of the term ids
+				ChunkOutput header = new ChunkOutput(16);
+				header.writeVarint(termIds.size());
+				deflate(header.buffer(), header.size());
+				deflate(terms.buffer(), terms.size());
+				length += header.size() + terms.size();
+				termIds.clear();
+				terms.reset();
+			}
+			deflate(chunk.buffer(), chunk.size());
+			deflater.finish();
+			while (!deflater.finished())
+				flushDeflater();
+			indexOutput.writeLong(start);
+			indexOutput.writeInt((int) (position - start));
+			indexOutput.writeInt(length);
+			chunk.reset();
+		}
+		blockSizes.add(blockRows);
+		blockRows = 0;
+		lastOffset = 0;
+		lastEndOffset = 0;
+		long upload = output.nanos - uploadBefore;
+		stats.recordTime(StatsKeeper.STAGES.COMPRESS, System.nanoTime()
+				- blockStart - upload);
+		if (upload > 0)
+			stats.recordTime(StatsKeeper.STAGES.UPLOAD, upload);
+	}
+
+	private void deflate(byte[] bytes, int length) throws IOException {
+		deflater.setInput(bytes, 0, length);
+		while (!deflater.needsInput())
+			flushDeflater();
+	}
+
+	private void flushDeflater() throws IOException {
+		int n = deflater.deflate(deflated);
+		output.write(deflated, 0, n);
+		position += n;
+	}
+}
@@ -0,0 +1,163 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+
+import webreduce.data.Dataset;
+
+/**
+ * Layout of the columnar result files. The datasets of a file are stored in
+ * blocks of consecutive rows, every block holds one deflated chunk per
+ * column, in the order of {@link Column}. A footer at the end of the file
+ * lists the column names and, for every block, its number of rows and the
+ * position and sizes of its chunks, so readers can fetch only the chunks of
+ * the columns they need.
+ *
+ * <pre>
+ * file   := MAGIC version:int block* footer footerStart:long MAGIC
+ * footer := columns:int name:utf* blocks:int (rows:int (start:long compressed:int length:int)*)*
+ * </pre>
+ *
+ * Inside a chunk, numbers are variable length encoded, signed ones zigzag
+ * encoded, offsets as differences to the previous row of the block. Strings
+ * are written as their UTF-8 length plus one followed by the bytes, 0 stands
+ * for null. Term sets are dictionary encoded per block, the chunk starts with
+ * the distinct terms of the block, followed by the term ids of every row.
+ * Readers find the columns by their names in the footer, so files written
+ * before a column was added can still be read, without that column.
+ */
+public class ColumnarFormat {
+	public static final int VERSION = 1;
+	static final byte[] MAGIC = { 'D', 'W', 'T', 'C' };
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The columns of a file, the fields of {@link Dataset} that are stored.
+	 * The metadata of a table is stored apart from its cells (RELATION),
+	 * which make up most of the file.
+	 */
+	public enum Column {
+		URL, S3_LINK, RECORD_OFFSET, RECORD_END_OFFSET, TABLE_NUM, TABLE_TYPE,
+		HEADER_POSITION, HAS_HEADER, TITLE, PAGE_TITLE, TERM_SET, RELATION
+	}
+
+	// the extraction only sets these through setters, they are read the way
+	// DatasetJsonEncoder reads all fields
+	static final Field TITLE_FIELD = datasetField("title");
+	static final Field PAGE_TITLE_FIELD = datasetField("pageTitle");
+
+	static Field datasetField(String name) {
+		for (Class<?> c = Dataset.class; c != Object.class; c = c
+				.getSuperclass()) {
+			try {
+				Field field = c.getDeclaredField(name);
+				field.setAccessible(true);
+				return field;
+			} catch (NoSuchFieldException e) {
+				// declared by a superclass
+			}
+		}
+		throw new IllegalStateException("Dataset has no field " + name);
+	}
+
+	static String getString(Field field, Dataset ds) {
+		try {
+			return (String) field.get(ds);
+		} catch (IllegalAccessException e) {
+			// the field was made accessible
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The uncompressed content of a chunk while it is written.
+	 */
+	static class ChunkOutput extends ByteArrayOutputStream {
+		ChunkOutput(int size) {
+			super(size);
+		}
+
+		byte[] buffer() {
+			return buf;
+		}
+
+		void writeVarint(long value) {
+			while ((value & ~0x7fL) != 0) {
+				write((int) ((value & 0x7f) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		void writeSigned(long value) {
+			writeVarint((value << 1) ^ (value >> 63));
+		}
+
+		void writeString(String s) {
+			if (s == null) {
+				write(0);
+				return;
+			}
+			byte[] bytes = s.getBytes(UTF8);
+			writeVarint(bytes.length + 1L);
+			write(bytes, 0, bytes.length);
+		}
+	}
+
+	/**
+	 * Reads the content of a chunk.
+	 */
+	static class ChunkInput {
+		private final byte[] bytes;
+		private final int end;
+		private int pos = 0;
+
+		ChunkInput(byte[] bytes, int length) {
+			this.bytes = bytes;
+			this.end = length;
+		}
+
+		int read() throws IOException {
+			if (pos >= end)
+				throw new IOException("Truncated chunk");
+			return bytes[pos++] & 0xff;
+		}
+
+		long readVarint() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = read();
+				value |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("Malformed number in chunk");
+		}
+
+		long readSigned() throws IOException {
+			long value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		// the length plus one of a nullable value, 0 for null
+		int readLength() throws IOException {
+			long length = readVarint();
+			if (length > end - pos + 1)
+				throw new IOException("Malformed length in chunk");
+			return (int) length;
+		}
+
+		String readString() throws IOException {
+			int length = readLength();
+			if (length == 0)
+				return null;
+			if (length - 1 > end - pos)
+				throw new IOException("Truncated chunk");
+			String s = new String(bytes, pos, length - 1, UTF8);
+			pos += length - 1;
+			return s;
+		}
+	}
+}
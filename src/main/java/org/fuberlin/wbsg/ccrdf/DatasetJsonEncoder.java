@@ -0,0 +1,413 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jsoup.Jsoup;
+
+import webreduce.data.Dataset;
+import webreduce.extraction.DocumentMetadata;
+import webreduce.extraction.ExtractionAlgorithm;
+import webreduce.extraction.TableExtractionModule;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+import com.google.inject.Guice;
+
+/**
+ * Writes datasets as UTF-8 JSON lines into a reusable byte buffer, in the
+ * format of {@link Dataset#toJson()}: the fields in the order Gson finds
+ * them, null fields left out, strings escaped the way Gson escapes them by
+ * default (including the HTML characters). Strings, string arrays, booleans,
+ * integers and enums are written directly, fields of any other type are
+ * handed to Gson. Not thread-safe, every writer needs its own encoder.
+ * {@link #main(String[])} compares the encoder to toJson() for the datasets
+ * extracted from a WARC file.
+ */
+public class DatasetJsonEncoder {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// initial buffer size, buffers that grew beyond the retained size for a
+	// very large table are dropped after the line was written
+	private static final int INITIAL_BUFFER = 16 * 1024;
+	private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+
+	// escape sequences of the ASCII characters, null if written as they are
+	private static final byte[][] ESCAPES = new byte[128][];
+	static {
+		for (int c = 0; c < 0x20; c++)
+			ESCAPES[c] = String.format("\\u%04x", c).getBytes(UTF8);
+		ESCAPES['\t'] = "\\t".getBytes(UTF8);
+		ESCAPES['\b'] = "\\b".getBytes(UTF8);
+		ESCAPES['\n'] = "\\n".getBytes(UTF8);
+		ESCAPES['\r'] = "\\r".getBytes(UTF8);
+		ESCAPES['\f'] = "\\f".getBytes(UTF8);
+		ESCAPES['"'] = "\\\"".getBytes(UTF8);
+		ESCAPES['\\'] = "\\\\".getBytes(UTF8);
+		// html safe escaping
+		for (char c : new char[] { '<', '>', '&', '=', '\'' })
+			ESCAPES[c] = String.format("\\u%04x", (int) c).getBytes(UTF8);
+	}
+	// escaped as well, they end lines in JavaScript
+	private static final char LINE_SEPARATOR = 0x2028;
+	private static final char PARAGRAPH_SEPARATOR = 0x2029;
+	private static final byte[] NULL = "null".getBytes(UTF8);
+	private static final byte[] TRUE = "true".getBytes(UTF8);
+	private static final byte[] FALSE = "false".getBytes(UTF8);
+
+	private static final int STRING = 0;
+	private static final int STRING_ARRAY = 1;
+	private static final int STRING_MATRIX = 2;
+	private static final int BOOLEAN = 3;
+	private static final int BOOLEAN_OBJECT = 4;
+	private static final int INT = 5;
+	private static final int LONG = 6;
+	private static final int NUMBER_OBJECT = 7;
+	private static final int ENUM = 8;
+	private static final int OTHER = 9;
+
+	// a field of Dataset as Gson serializes it
+	private static class JsonField {
+		final Field field;
+		final int kind;
+		// "name": as written by Gson, without the separating comma
+		final byte[] name;
+		// the JSON of every constant of an enum type, by ordinal
+		final byte[][] constants;
+
+		JsonField(Field field, int kind, byte[] name, byte[][] constants) {
+			this.field = field;
+			this.kind = kind;
+			this.name = name;
+			this.constants = constants;
+		}
+	}
+
+	private static final Gson gson = new Gson();
+	private static final List<JsonField> fields = jsonFields(Dataset.class);
+
+	private byte[] buffer = new byte[INITIAL_BUFFER];
+	private int length = 0;
+
+	/**
+	 * Replaces the buffer content with the JSON of the dataset, followed by a
+	 * newline.
+	 */
+	public void encodeLine(Dataset ds) {
+		length = 0;
+		ensure(1);
+		buffer[length++] = '{';
+		boolean first = true;
+		try {
+			for (JsonField f : fields) {
+				first = writeField(f, ds, first);
+			}
+		} catch (IllegalAccessException e) {
+			// all fields were made accessible
+			throw new IllegalStateException(e);
+		}
+		ensure(2);
+		buffer[length++] = '}';
+		buffer[length++] = '\n';
+	}
+
+	/**
+	 * @return true if the buffer holds the given JSON, followed by a newline
+	 */
+	public boolean matches(String json) {
+		byte[] expected = json.getBytes(UTF8);
+		if (expected.length != length - 1)
+			return false;
+		for (int i = 0; i < expected.length; i++) {
+			if (expected[i] != buffer[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the buffer content to the output.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buffer, 0, length);
+		if (buffer.length > MAX_RETAINED_BUFFER)
+			buffer = new byte[INITIAL_BUFFER];
+		length = 0;
+	}
+
+	/**
+	 * @return number of bytes in the buffer
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	// returns false if the field was written, the value of first otherwise
+	private boolean writeField(JsonField f, Dataset ds, boolean first)
+			throws IllegalAccessException {
+		Object value = null;
+		switch (f.kind) {
+		case BOOLEAN:
+			writeName(f, first);
+			writeRaw(f.field.getBoolean(ds) ? TRUE : FALSE);
+			return false;
+		case INT:
+			writeName(f, first);
+			writeLong(f.field.getInt(ds));
+			return false;
+		case LONG:
+			writeName(f, first);
+			writeLong(f.field.getLong(ds));
+			return false;
+		default:
+			value = f.field.get(ds);
+		}
+		if (value == null)
+			return first;
+		writeName(f, first);
+		switch (f.kind) {
+		case STRING:
+			writeString((String) value);
+			break;
+		case STRING_ARRAY:
+			writeStrings((String[]) value);
+			break;
+		case STRING_MATRIX:
+			String[][] rows = (String[][]) value;
+			ensure(1);
+			buffer[length++] = '[';
+			for (int i = 0; i < rows.length; i++) {
+				if (i > 0)
+					writeByte(',');
+				if (rows[i] == null)
+					writeRaw(NULL);
+				else
+					writeStrings(rows[i]);
+			}
+			writeByte(']');
+			break;
+		case BOOLEAN_OBJECT:
+			writeRaw((Boolean) value ? TRUE : FALSE);
+			break;
+		case NUMBER_OBJECT:
+			writeLong(((Number) value).longValue());
+			break;
+		case ENUM:
+			writeRaw(f.constants[((Enum<?>) value).ordinal()]);
+			break;
+		default:
+			writeJson(gson.toJson(value, f.field.getGenericType()));
+		}
+		return false;
+	}
+
+	private void writeName(JsonField f, boolean first) {
+		if (!first)
+			writeByte(',');
+		writeRaw(f.name);
+	}
+
+	private void writeStrings(String[] values) {
+		writeByte('[');
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				writeByte(',');
+			if (values[i] == null)
+				writeRaw(NULL);
+			else
+				writeString(values[i]);
+		}
+		writeByte(']');
+	}
+
+	// a quoted and escaped string, unpaired surrogates become '?' like in
+	// String.getBytes
+	private void writeString(String s) {
+		int n = s.length();
+		// no character takes more than six bytes
+		ensure(6 * n + 2);
+		byte[] b = buffer;
+		int pos = length;
+		b[pos++] = '"';
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				byte[] escape = ESCAPES[c];
+				if (escape == null) {
+					b[pos++] = (byte) c;
+				} else {
+					System.arraycopy(escape, 0, b, pos, escape.length);
+					pos += escape.length;
+				}
+			} else if (c < 0x800) {
+				b[pos++] = (byte) (0xc0 | (c >> 6));
+				b[pos++] = (byte) (0x80 | (c & 0x3f));
+			} else if (c == LINE_SEPARATOR || c == PARAGRAPH_SEPARATOR) {
+				b[pos++] = '\\';
+				b[pos++] = 'u';
+				b[pos++] = '2';
+				b[pos++] = '0';
+				b[pos++] = '2';
+				b[pos++] = (byte) (c == LINE_SEPARATOR ? '8' : '9');
+			} else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < n
+						&& Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					b[pos++] = (byte) (0xf0 | (cp >> 18));
+					b[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					b[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					b[pos++] = (byte) (0x80 | (cp & 0x3f));
+				} else {
+					b[pos++] = '?';
+				}
+			} else {
+				b[pos++] = (byte) (0xe0 | (c >> 12));
+				b[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				b[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		b[pos++] = '"';
+		length = pos;
+	}
+
+	private void writeLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			writeJson(Long.toString(value));
+			return;
+		}
+		ensure(20);
+		if (value < 0) {
+			buffer[length++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long v = value; v >= 10; v /= 10)
+			digits++;
+		int pos = length + digits;
+		length = pos;
+		do {
+			buffer[--pos] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+	}
+
+	// JSON written by Gson, already escaped
+	private void writeJson(String json) {
+		writeRaw(json.getBytes(UTF8));
+	}
+
+	private void writeRaw(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+
+	private void writeByte(char c) {
+		ensure(1);
+		buffer[length++] = (byte) c;
+	}
+
+	private void ensure(int free) {
+		if (length + free > buffer.length) {
+			byte[] grown = new byte[Math.max(buffer.length * 2, length + free)];
+			System.arraycopy(buffer, 0, grown, 0, length);
+			buffer = grown;
+		}
+	}
+
+	// the fields Gson serializes, in the order it writes them: the declared
+	// fields of the class before those of its superclasses
+	private static List<JsonField> jsonFields(Class<?> type) {
+		List<JsonField> result = new ArrayList<JsonField>();
+		for (Class<?> c = type; c != Object.class; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+				if (Modifier.isStatic(modifiers)
+						|| Modifier.isTransient(modifiers) || field.isSynthetic())
+					continue;
+				field.setAccessible(true);
+				SerializedName serializedName = field
+						.getAnnotation(SerializedName.class);
+				String name = serializedName != null ? serializedName.value()
+						: field.getName();
+				byte[] nameJson = (gson.toJson(name) + ":").getBytes(UTF8);
+
+				Class<?> t = field.getType();
+				byte[][] constants = null;
+				int kind;
+				if (t == String.class)
+					kind = STRING;
+				else if (t == String[].class)
+					kind = STRING_ARRAY;
+				else if (t == String[][].class)
+					kind = STRING_MATRIX;
+				else if (t == boolean.class)
+					kind = BOOLEAN;
+				else if (t == Boolean.class)
+					kind = BOOLEAN_OBJECT;
+				else if (t == int.class || t == short.class || t == byte.class)
+					kind = INT;
+				else if (t == long.class)
+					kind = LONG;
+				else if (t == Integer.class || t == Long.class
+						|| t == Short.class || t == Byte.class)
+					kind = NUMBER_OBJECT;
+				else if (t.isEnum()) {
+					kind = ENUM;
+					Object[] values = t.getEnumConstants();
+					constants = new byte[values.length][];
+					for (int i = 0; i < values.length; i++)
+						constants[i] = gson.toJson(values[i], t).getBytes(UTF8);
+				} else
+					kind = OTHER;
+				result.add(new JsonField(field, kind, nameJson, constants));
+			}
+		}
+		return result;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: " + DatasetJsonEncoder.class.getName()
+					+ " file.warc.gz");
+			System.exit(1);
+		}
+		ExtractionAlgorithm algorithm = Guice.createInjector(
+				new TableExtractionModule()).getInstance(
+				ExtractionAlgorithm.class);
+		DatasetJsonEncoder encoder = new DatasetJsonEncoder();
+		int datasets = 0;
+		int mismatches = 0;
+		ExtractionPipeline.WarcRecordReader reader = new ExtractionPipeline.WarcRecordReader(
+				new FileInputStream(args[0]));
+		try {
+			ExtractionPipeline.RecordWithOffsetsAndURL item;
+			while ((item = reader.next()) != null) {
+				String html = PageDecoder.decode(item.bytes, item.contentType);
+				for (Dataset ds : algorithm.extract(Jsoup.parse(html, ""),
+						new DocumentMetadata(0, 0, args[0], item.url))) {
+					datasets++;
+					String expected = ds.toJson();
+					encoder.encodeLine(ds);
+					if (!encoder.matches(expected)) {
+						mismatches++;
+						System.out.println("mismatch for a table of " + ds.url
+								+ ":\n" + expected + "\n"
+								+ new String(encoder.buffer, 0,
+										encoder.length - 1, UTF8));
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		System.out.println(datasets + " datasets compared, " + mismatches
+				+ " mismatches");
+	}
+}
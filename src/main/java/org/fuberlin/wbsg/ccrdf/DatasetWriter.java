@@ -0,0 +1,121 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import webreduce.data.Dataset;
+import webreduce.extraction.StatsKeeper;
+
+/**
+ * Writes extracted datasets as gzip'd JSON lines as soon as they are handed
+ * over, so the results of a WARC file never have to be kept in memory as a
+ * whole. The JSON is encoded by a {@link DatasetJsonEncoder} straight into
+ * the compressor, gzip unless another {@link ResultCompression} is given.
+ * The time spent encoding, compressing and writing the compressed results is
+ * recorded as the stages SERIALIZE, COMPRESS and UPLOAD of the given
+ * {@link StatsKeeper}.
+ */
+public class DatasetWriter implements ExtractionPipeline.ResultHandler,
+		Closeable {
+	private final OutputStream output;
+	private final TimedOutputStream timedOutput;
+	private final StatsKeeper stats;
+	private final DatasetJsonEncoder encoder = new DatasetJsonEncoder();
+	private long datasetCount = 0;
+
+	public DatasetWriter(OutputStream output) throws IOException {
+		this(output, new ResultCompression());
+	}
+
+	public DatasetWriter(OutputStream output, ResultCompression compression)
+			throws IOException {
+		this(output, compression, new StatsKeeper.NullStats());
+	}
+
+	public DatasetWriter(OutputStream output, ResultCompression compression,
+			StatsKeeper stats) throws IOException {
+		this.timedOutput = new TimedOutputStream(output);
+		this.output = compression.compress(timedOutput);
+		this.stats = stats;
+	}
+
+	public void write(Dataset ds) throws IOException {
+		long start = System.nanoTime();
+		encoder.encodeLine(ds);
+		long encoded = System.nanoTime();
+		stats.recordTime(StatsKeeper.STAGES.SERIALIZE, encoded - start);
+		long uploadBefore = timedOutput.nanos;
+		encoder.writeTo(output);
+		// writes of the compressor to the underlying output are not part of
+		// the compression
+		long upload = timedOutput.nanos - uploadBefore;
+		stats.recordTime(StatsKeeper.STAGES.COMPRESS, System.nanoTime()
+				- encoded - upload);
+		if (upload > 0)
+			stats.recordTime(StatsKeeper.STAGES.UPLOAD, upload);
+		datasetCount++;
+	}
+
+	@Override
+	public void handle(List<Dataset> docResult) throws IOException {
+		for (Dataset ds : docResult) {
+			write(ds);
+		}
+	}
+
+	/**
+	 * @return number of datasets written so far
+	 */
+	public long getDatasetCount() {
+		return datasetCount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		long uploadBefore = timedOutput.nanos;
+		output.close();
+		stats.recordTime(StatsKeeper.STAGES.UPLOAD, timedOutput.nanos
+				- uploadBefore);
+	}
+
+	// sums up the time spent in the methods of the wrapped stream, also used
+	// by ColumnarDatasetWriter
+	static class TimedOutputStream extends FilterOutputStream {
+		long nanos = 0;
+
+		TimedOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			long start = System.nanoTime();
+			out.write(b);
+			nanos += System.nanoTime() - start;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			out.write(b, off, len);
+			nanos += System.nanoTime() - start;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			long start = System.nanoTime();
+			out.flush();
+			nanos += System.nanoTime() - start;
+		}
+
+		@Override
+		public void close() throws IOException {
+			long start = System.nanoTime();
+			out.close();
+			nanos += System.nanoTime() - start;
+		}
+	}
+}
@@ -0,0 +1,403 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jwat.common.HttpHeader;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
+
+import webreduce.data.Dataset;
+import webreduce.extraction.DocumentMetadata;
+import webreduce.extraction.ExtractionAlgorithm;
+import webreduce.extraction.LatencyHistogram;
+import webreduce.extraction.StatsKeeper;
+import webreduce.extraction.StreamingExtractionAlgorithm;
+
+import com.google.common.io.CountingInputStream;
+import com.google.inject.Injector;
+
+/**
+ * Staged extraction of a single WARC file. One reader thread takes the
+ * response records from a {@link RecordReader} into a bounded queue, a number
+ * of extraction threads parse the records and run the extraction algorithm on
+ * them, and the calling thread collects the per-record results in record
+ * order. Output order and table metadata therefore do not depend on thread
+ * scheduling.
+ */
+public class ExtractionPipeline {
+	private static Logger log = Logger.getLogger(ExtractionPipeline.class);
+
+	private static final String WARC_TARGET_URI = "WARC-Target-URI";
+
+	/**
+	 * Receives the results of one record at a time, in record order. Called
+	 * on the thread that runs the pipeline.
+	 */
+	public interface ResultHandler {
+		public void handle(List<Dataset> docResult) throws IOException;
+	}
+
+	/**
+	 * Source of the response records of one WARC file, in file order.
+	 */
+	public interface RecordReader extends Closeable {
+		/**
+		 * @return the next response record, null at the end of the file
+		 */
+		public RecordWithOffsetsAndURL next() throws IOException;
+	}
+
+	/**
+	 * Reads the records one after the other from a compressed WARC stream.
+	 */
+	public static class WarcRecordReader implements RecordReader {
+		private final CountingInputStream input;
+		private final WarcReader warcReader;
+
+		public WarcRecordReader(InputStream compressed) throws IOException {
+			this.input = new CountingInputStream(compressed);
+			this.warcReader = WarcReaderFactory.getReaderCompressed(input);
+		}
+
+		/**
+		 * @return number of compressed bytes read so far
+		 */
+		public long getBytesRead() {
+			return input.getCount();
+		}
+
+		@Override
+		public RecordWithOffsetsAndURL next() throws IOException {
+			WarcRecord wr;
+			while (true) {
+				try {
+					wr = warcReader.getNextRecord();
+				} catch (IOException e) {
+					continue;
+				}
+				if (wr == null)
+					return null;
+
+				long offset = warcReader.getStartOffset();
+				RecordWithOffsetsAndURL item = toResponseRecord(wr);
+				if (item != null) {
+					item.start = offset;
+					item.end = warcReader.getOffset();
+					return item;
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			warcReader.close();
+			input.close();
+		}
+	}
+
+	static class RecordWithOffsetsAndURL {
+		public byte[] bytes;
+		public long start;
+		public long end;
+		public String url;
+		// Content-Type of the HTTP response, null if unknown
+		public String contentType;
+
+		public RecordWithOffsetsAndURL(byte[] bytes, long start, long end, String url) {
+			super();
+			this.bytes = bytes;
+			this.start = start;
+			this.end = end;
+			this.url = url;
+		}
+	}
+
+	// a record handed from the reader to the extraction threads
+	private static class Task {
+		final long seq;
+		final RecordWithOffsetsAndURL item;
+
+		Task(long seq, RecordWithOffsetsAndURL item) {
+			this.seq = seq;
+			this.item = item;
+		}
+	}
+
+	// a result handed to the collector, the reader signals the end of the
+	// file with the total number of records
+	private static class Done {
+		final long seq;
+		final List<Dataset> result;
+		final boolean last;
+		final Throwable error;
+
+		Done(long seq, List<Dataset> result, boolean last, Throwable error) {
+			this.seq = seq;
+			this.result = result;
+			this.last = last;
+			this.error = error;
+		}
+	}
+
+	private final List<ExtractionAlgorithm> algorithms;
+	private final int queueSize;
+	private final RecordPrefilter prefilter;
+	private long pagesTotal = 0;
+	private final AtomicLong pagesErrors = new AtomicLong();
+	// durations recorded by the reader thread
+	private final StatsKeeper.EnumStats readerStats = new StatsKeeper.EnumStats();
+
+	/**
+	 * @param injector
+	 *            used to create one extraction algorithm per extraction
+	 *            thread, as the algorithms keep per-instance state
+	 * @param threads
+	 *            number of parse and extract stages
+	 * @param queueSize
+	 *            number of decompressed records that may wait for an
+	 *            extraction thread
+	 * @param prefilter
+	 *            skips records which cannot contain tables before parsing
+	 *            them, may be null
+	 */
+	public ExtractionPipeline(Injector injector, int threads, int queueSize,
+			RecordPrefilter prefilter) {
+		this.algorithms = new ArrayList<ExtractionAlgorithm>(threads);
+		for (int i = 0; i < Math.max(1, threads); i++) {
+			algorithms.add(injector.getInstance(ExtractionAlgorithm.class));
+		}
+		this.queueSize = Math.max(1, queueSize);
+		this.prefilter = prefilter;
+	}
+
+	/**
+	 * Extracts all response records of the given reader and hands the results
+	 * to the handler, one record at a time and in the order of the records in
+	 * the file.
+	 */
+	public void run(final RecordReader recordReader, final String inputFileKey,
+			ResultHandler handler) throws IOException, InterruptedException {
+		int threads = algorithms.size();
+		final BlockingQueue<Task> tasks = new ArrayBlockingQueue<Task>(queueSize);
+		final BlockingQueue<Done> done = new LinkedBlockingQueue<Done>();
+		// bounds the number of records between reader and collector, so a
+		// single slow record cannot make finished results pile up
+		final Semaphore inFlight = new Semaphore(queueSize + threads);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads + 1,
+				new ThreadFactory() {
+					private int serial = 0;
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, Thread.currentThread().getName()
+								+ "-stage" + serial++);
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					long seq = 0;
+					try {
+						RecordWithOffsetsAndURL item = nextRecord(recordReader);
+						while (item != null) {
+							inFlight.acquire();
+							tasks.put(new Task(seq++, item));
+							item = nextRecord(recordReader);
+						}
+						done.put(new Done(seq, null, true, null));
+					} catch (InterruptedException e) {
+						return;
+					} catch (Throwable e) {
+						done.add(new Done(seq, null, true, e));
+					}
+				}
+			});
+			for (final ExtractionAlgorithm ea : algorithms) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							while (true) {
+								Task task = tasks.take();
+								done.put(new Done(task.seq, extractRecord(ea,
+										task.item, inputFileKey), false, null));
+							}
+						} catch (InterruptedException e) {
+							return;
+						} catch (Throwable e) {
+							done.add(new Done(-1, null, false, e));
+						}
+					}
+				});
+			}
+
+			// collect results in record order
+			Map<Long, List<Dataset>> pending = new HashMap<Long, List<Dataset>>();
+			long next = 0;
+			long total = -1;
+			while (total < 0 || next < total) {
+				Done d = done.take();
+				if (d.error != null) {
+					if (d.error instanceof IOException)
+						throw (IOException) d.error;
+					throw new IOException("Extraction stage failed", d.error);
+				}
+				if (d.last) {
+					total = d.seq;
+				} else {
+					pending.put(d.seq, d.result);
+				}
+				while (pending.containsKey(next)) {
+					handler.handle(pending.remove(next));
+					pagesTotal++;
+					next++;
+					inFlight.release();
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return number of records extracted by the last run
+	 */
+	public long getPagesTotal() {
+		return pagesTotal;
+	}
+
+	/**
+	 * @return number of records whose extraction failed
+	 */
+	public long getPagesErrors() {
+		return pagesErrors.get();
+	}
+
+	/**
+	 * @return counters and durations of the reader and all extraction
+	 *         threads
+	 */
+	public StatsKeeper.EnumStats getStats() {
+		StatsKeeper.EnumStats merged = readerStats.snapshot();
+		for (ExtractionAlgorithm ea : algorithms) {
+			StatsKeeper stats = ea.getStatsKeeper();
+			if (stats instanceof StatsKeeper.EnumStats) {
+				merged.add((StatsKeeper.EnumStats) stats);
+			} else {
+				if (stats.statsAsMap() != null)
+					merged.addMap(stats.statsAsMap());
+				if (stats.timesAsMap() != null)
+					merged.addTimes(stats.timesAsMap());
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * @return counters of all extraction threads, summed up by name
+	 */
+	public Map<String, Long> statsAsMap() {
+		return getStats().statsAsMap();
+	}
+
+	/**
+	 * @return durations of the stages of all threads, merged by stage
+	 */
+	public Map<String, LatencyHistogram> timesAsMap() {
+		return getStats().timesAsMap();
+	}
+
+	private RecordWithOffsetsAndURL nextRecord(RecordReader recordReader)
+			throws IOException {
+		long start = System.nanoTime();
+		RecordWithOffsetsAndURL item = recordReader.next();
+		if (item != null)
+			readerStats.recordTime(StatsKeeper.STAGES.WARC_DECODE,
+					System.nanoTime() - start);
+		return item;
+	}
+
+	private List<Dataset> extractRecord(ExtractionAlgorithm ea,
+			RecordWithOffsetsAndURL item, String inputFileKey) {
+		List<Dataset> docResult;
+		if (prefilter != null) {
+			RecordPrefilter.PREFILTER_COUNTERS skipped = prefilter
+					.check(item.bytes, item.contentType);
+			if (skipped != null) {
+				ea.getStatsKeeper().incCounter(skipped);
+				return new ArrayList<Dataset>();
+			}
+		}
+		try {
+			DocumentMetadata dm = new DocumentMetadata(
+					item.start, item.end, inputFileKey, item.url);
+
+			// decoded once, with the charset of the HTTP header if there is
+			// one
+			long start = System.nanoTime();
+			String html = PageDecoder.decode(item.bytes, item.contentType);
+			if (ea instanceof StreamingExtractionAlgorithm) {
+				// the algorithm does not need a parsed document
+				ea.getStatsKeeper().recordTime(StatsKeeper.STAGES.PARSE,
+						System.nanoTime() - start);
+				docResult = ((StreamingExtractionAlgorithm) ea).extract(html,
+						dm);
+			} else {
+				Document doc = Jsoup.parse(html, "");
+				ea.getStatsKeeper().recordTime(StatsKeeper.STAGES.PARSE,
+						System.nanoTime() - start);
+				docResult = ea.extract(doc, dm);
+			}
+		} catch (Exception e) {
+			pagesErrors.incrementAndGet();
+			log.warn("Extraction failed for " + item.url, e);
+			docResult = new ArrayList<Dataset>();
+		}
+		if (docResult == null)
+			docResult = new ArrayList<Dataset>();
+		return docResult;
+	}
+
+	/**
+	 * @return the payload, HTTP content type and target URI of a response
+	 *         record, without offsets, or null for all other record types.
+	 *         The payload does not include the HTTP header.
+	 */
+	static RecordWithOffsetsAndURL toResponseRecord(WarcRecord wr)
+			throws IOException {
+		String type = wr.getHeader("WARC-Type").value;
+		if (!type.equals("response"))
+			return null;
+		byte[] rawContent = IOUtils.toByteArray(wr.getPayloadContent());
+		String url = wr.getHeader(WARC_TARGET_URI).value;
+		RecordWithOffsetsAndURL item = new RecordWithOffsetsAndURL(rawContent,
+				-1, -1, url);
+		HttpHeader httpHeader = wr.getHttpHeader();
+		if (httpHeader != null)
+			item.contentType = httpHeader.contentType;
+		return item;
+	}
+}
@@ -0,0 +1,125 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads WARC files from a local mirror of the data bucket, so extraction can
+ * run over a copy of the crawl without S3, SQS and SimpleDB. Keys are paths
+ * relative to the mirror's root directory, which makes them (and the s3Link
+ * of the extracted tables) identical to the keys used on S3. Files are read
+ * through memory mappings.
+ */
+public class LocalWarcSource implements WarcSource {
+	private final File root;
+
+	public LocalWarcSource(File root) {
+		this.root = root;
+	}
+
+	@Override
+	public InputStream open(String key) throws IOException {
+		return new MappedInputStream(new MappedFile(getFile(key)));
+	}
+
+	public File getFile(String key) {
+		return new File(root, key);
+	}
+
+	/**
+	 * Lists the keys of all WARC files below the given prefix, in lexical
+	 * order.
+	 */
+	public List<String> listKeys(String prefix) {
+		List<String> keys = new ArrayList<String>();
+		String base = prefix.endsWith("/") || prefix.isEmpty() ? prefix
+				: prefix + "/";
+		collectKeys(getFile(prefix), base, keys);
+		Collections.sort(keys);
+		return keys;
+	}
+
+	private void collectKeys(File dir, String keyPrefix, List<String> keys) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files) {
+			if (f.isDirectory()) {
+				collectKeys(f, keyPrefix + f.getName() + "/", keys);
+			} else if (f.getName().endsWith(ProcessingNode.DATA_SUFFIX)) {
+				keys.add(keyPrefix + f.getName());
+			}
+		}
+	}
+
+	/**
+	 * Reads a segment list like the one given to 'queue -f', one prefix per
+	 * line.
+	 */
+	public static List<String> readPrefixFile(File prefixFile)
+			throws IOException {
+		List<String> prefixes = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(prefixFile));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.trim().length() > 0)
+					prefixes.add(line.trim());
+			}
+		} finally {
+			br.close();
+		}
+		return prefixes;
+	}
+
+	/*
+	 * Sequential stream over a mapped file.
+	 */
+	private static class MappedInputStream extends InputStream {
+		private final MappedFile file;
+		private long position = 0;
+
+		MappedInputStream(MappedFile file) {
+			this.file = file;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			int n = file.read(position, b, off, len);
+			if (n > 0)
+				position += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = Math.max(0, Math.min(n, file.size() - position));
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(Integer.MAX_VALUE, file.size() - position);
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+}
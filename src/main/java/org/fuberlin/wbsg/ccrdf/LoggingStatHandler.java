@@ -0,0 +1,41 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Logs the statistics instead of storing them, at DEBUG unless asked for
+ * INFO.
+ */
+class LoggingStatHandler implements StatHandler {
+	private static Logger log = Logger.getLogger(LoggingStatHandler.class);
+
+	private final Level level;
+
+	public LoggingStatHandler() {
+		this(false);
+	}
+
+	/**
+	 * @param info
+	 *            log at INFO, e.g. in local mode where the statistics are not
+	 *            stored anywhere else
+	 */
+	public LoggingStatHandler(boolean info) {
+		this.level = info ? Level.INFO : Level.DEBUG;
+	}
+
+	@Override
+	public void addStats(String key, Map<String, String> data) {
+		if (log.isEnabledFor(level))
+			log.log(level, key + ": " + new TreeMap<String, String>(data));
+	}
+
+	@Override
+	public void flush() {
+	}
+
+}
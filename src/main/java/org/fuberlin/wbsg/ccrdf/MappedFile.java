@@ -0,0 +1,70 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only memory mapping of a whole file. The file is mapped in windows, so
+ * files larger than 2GB can be read, and reads at arbitrary positions may
+ * happen from several threads at once.
+ */
+class MappedFile implements Closeable {
+	private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+	private final RandomAccessFile file;
+	private final long size;
+	private final MappedByteBuffer[] windows;
+
+	public MappedFile(File f) throws IOException {
+		file = new RandomAccessFile(f, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			size = channel.size();
+			windows = new MappedByteBuffer[(int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+			for (int i = 0; i < windows.length; i++) {
+				long start = i * WINDOW_SIZE;
+				windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(WINDOW_SIZE, size - start));
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Copies up to len bytes starting at the given file position.
+	 *
+	 * @return number of bytes copied, -1 at the end of the file
+	 */
+	public int read(long position, byte[] b, int off, int len) {
+		if (position >= size)
+			return -1;
+		int copied = 0;
+		while (copied < len && position < size) {
+			// duplicate, so concurrent readers do not share a position
+			ByteBuffer window = windows[(int) (position / WINDOW_SIZE)]
+					.duplicate();
+			window.position((int) (position % WINDOW_SIZE));
+			int n = Math.min(len - copied, window.remaining());
+			window.get(b, off + copied, n);
+			copied += n;
+			position += n;
+		}
+		return copied;
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
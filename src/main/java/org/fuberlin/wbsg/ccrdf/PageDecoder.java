@@ -0,0 +1,143 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decodes a response payload exactly once, before it is parsed. The charset is
+ * taken from the first of these that names a supported charset: a byte order
+ * mark, the charset parameter of the HTTP Content-Type header, a meta tag in
+ * the first bytes of the page. Otherwise the page is read as UTF-8, the
+ * default of Jsoup. Common misspellings and aliases Java does not know are
+ * mapped to the charset they mean, unknown names are skipped.
+ */
+public class PageDecoder {
+	public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+	// meta tags are looked for in this many bytes of a page
+	static final int META_SNIFF_BYTES = 8192;
+
+	private static final Charset ASCII_COMPATIBLE = Charset
+			.forName("ISO-8859-1");
+	private static final Pattern CONTENT_TYPE_CHARSET = Pattern.compile(
+			"charset\\s*=\\s*[\"']?([^\"'\\s;,]+)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern META_CHARSET = Pattern.compile(
+			"<meta[^>]+charset\\s*=\\s*[\"']?([^\"'\\s/>;]+)",
+			Pattern.CASE_INSENSITIVE);
+	private static final Pattern WINDOWS = Pattern
+			.compile("(?:x-)?(?:windows|win|cp|ms)[-_ ]?(125[0-8])");
+	private static final Pattern ISO_8859 = Pattern
+			.compile("iso[-_ ]?8859[-_ ]?(\\d{1,2})(?::\\d+)?");
+	private static final Pattern UTF_8 = Pattern.compile("(?:x-)?utf[-_ ]?8");
+
+	private static final Map<String, String> aliases = new HashMap<String, String>();
+	static {
+		aliases.put("x-user-defined", "windows-1252");
+		aliases.put("iso-8859-8-i", "ISO-8859-8");
+		aliases.put("latin-1", "ISO-8859-1");
+		aliases.put("macintosh", "x-MacRoman");
+		aliases.put("mac", "x-MacRoman");
+		aliases.put("shift-jis", "Shift_JIS");
+		aliases.put("sjis", "Shift_JIS");
+		aliases.put("x-sjis", "Shift_JIS");
+		aliases.put("gb_2312", "GBK");
+		aliases.put("gb2312-80", "GBK");
+		aliases.put("ksc5601", "EUC-KR");
+		aliases.put("ks_c_5601", "EUC-KR");
+		aliases.put("tis620", "TIS-620");
+	}
+
+	/**
+	 * @param contentType
+	 *            value of the HTTP Content-Type header, may be null
+	 */
+	public static String decode(byte[] bytes, String contentType) {
+		int bomLength = 0;
+		Charset charset = null;
+		if (startsWith(bytes, 0xef, 0xbb, 0xbf)) {
+			charset = DEFAULT_CHARSET;
+			bomLength = 3;
+		} else if (startsWith(bytes, 0xfe, 0xff)) {
+			charset = Charset.forName("UTF-16BE");
+			bomLength = 2;
+		} else if (startsWith(bytes, 0xff, 0xfe)) {
+			charset = Charset.forName("UTF-16LE");
+			bomLength = 2;
+		}
+		if (charset == null)
+			charset = headerCharset(contentType);
+		if (charset == null)
+			charset = sniffMeta(bytes);
+		if (charset == null)
+			charset = DEFAULT_CHARSET;
+		return new String(bytes, bomLength, bytes.length - bomLength, charset);
+	}
+
+	/**
+	 * @param contentType
+	 *            value of the HTTP Content-Type header, may be null
+	 * @return the supported charset named by the header, null if there is
+	 *         none
+	 */
+	static Charset headerCharset(String contentType) {
+		if (contentType == null)
+			return null;
+		Matcher m = CONTENT_TYPE_CHARSET.matcher(contentType);
+		return m.find() ? forName(m.group(1)) : null;
+	}
+
+	// the charset of the first meta tag that declares one
+	private static Charset sniffMeta(byte[] bytes) {
+		String head = new String(bytes, 0, Math.min(bytes.length,
+				META_SNIFF_BYTES), ASCII_COMPATIBLE);
+		Matcher m = META_CHARSET.matcher(head);
+		if (!m.find())
+			return null;
+		Charset charset = forName(m.group(1));
+		// the tag could be read as ASCII, so the page is not UTF-16
+		if (charset != null && charset.name().startsWith("UTF-16"))
+			return DEFAULT_CHARSET;
+		return charset;
+	}
+
+	/**
+	 * @return the supported charset with the given name or alias, null if it
+	 *         is unknown
+	 */
+	static Charset forName(String name) {
+		name = name.trim().toLowerCase(Locale.ENGLISH);
+		String alias = aliases.get(name);
+		if (alias != null) {
+			name = alias;
+		} else {
+			Matcher m;
+			if ((m = WINDOWS.matcher(name)).matches())
+				name = "windows-" + m.group(1);
+			else if ((m = ISO_8859.matcher(name)).matches())
+				name = "ISO-8859-" + m.group(1);
+			else if (UTF_8.matcher(name).matches())
+				name = "UTF-8";
+		}
+		try {
+			if (Charset.isSupported(name))
+				return Charset.forName(name);
+		} catch (IllegalCharsetNameException e) {
+			// not a charset name at all
+		}
+		return null;
+	}
+
+	private static boolean startsWith(byte[] bytes, int... prefix) {
+		if (bytes.length < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++)
+			if ((bytes[i] & 0xff) != prefix[i])
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,188 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compression on several threads. The data is cut into blocks, every
+ * block is compressed on the given executor into a gzip member of its own,
+ * and the members are written in order. Concatenated members are a valid
+ * gzip file, which gzip, zcat and GZIPInputStream read like a file with a
+ * single member. At most a fixed number of blocks per stream are buffered or
+ * being compressed.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+	// header of every member, as written by GZIPOutputStream
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED,
+			0, 0, 0, 0, 0, 0, 0 };
+
+	// the deflaters of the compressing threads
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+
+	private final OutputStream out;
+	private final ExecutorService executor;
+	private final int level;
+	private final int blockSize;
+	private final int maxPending;
+
+	private byte[] block;
+	private int blockLength = 0;
+	// compressed members that were not written yet, in order
+	private final Queue<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	// buffers of compressed blocks, ready to be filled again
+	private final Queue<byte[]> freeBlocks = new ConcurrentLinkedQueue<byte[]>();
+	private boolean empty = true;
+	private boolean closed = false;
+
+	/**
+	 * @param level
+	 *            deflate level, 1 to 9, or -1 for the default
+	 * @param blockSize
+	 *            number of uncompressed bytes per gzip member
+	 * @param maxPending
+	 *            number of blocks that may wait for the executor or for
+	 *            being written
+	 */
+	public ParallelGzipOutputStream(OutputStream out, ExecutorService executor,
+			int level, int blockSize, int maxPending) {
+		this.out = out;
+		this.executor = executor;
+		this.level = level;
+		this.blockSize = blockSize;
+		this.maxPending = Math.max(1, maxPending);
+		this.block = new byte[blockSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (blockLength == blockSize)
+			submitBlock();
+		block[blockLength++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (blockLength == blockSize)
+				submitBlock();
+			int n = Math.min(len, blockSize - blockLength);
+			System.arraycopy(b, off, block, blockLength, n);
+			blockLength += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Compresses the buffered data and writes all members. Every flush ends a
+	 * member, so flushing often makes the output larger.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (blockLength > 0)
+			submitBlock();
+		while (!pending.isEmpty())
+			writeMember();
+		out.flush();
+	}
+
+	/**
+	 * Writes the remaining members and closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			// an empty stream still gets one member, like GZIPOutputStream
+			if (blockLength > 0 || empty)
+				submitBlock();
+			while (!pending.isEmpty())
+				writeMember();
+		} finally {
+			for (Future<byte[]> member : pending)
+				member.cancel(false);
+			out.close();
+		}
+	}
+
+	private void submitBlock() throws IOException {
+		while (pending.size() >= maxPending)
+			writeMember();
+		final byte[] data = block;
+		final int length = blockLength;
+		pending.add(executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				byte[] member = compress(data, length, level);
+				freeBlocks.add(data);
+				return member;
+			}
+		}));
+		empty = false;
+		block = freeBlocks.poll();
+		if (block == null)
+			block = new byte[blockSize];
+		blockLength = 0;
+	}
+
+	private void writeMember() throws IOException {
+		try {
+			out.write(pending.remove().get());
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while compressing");
+		} catch (ExecutionException e) {
+			throw new IOException("Compression failed", e.getCause());
+		}
+	}
+
+	/**
+	 * @return the data as a complete gzip member
+	 */
+	static byte[] compress(byte[] data, int length, int level) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setLevel(level);
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+
+		ByteArrayOutputStream member = new ByteArrayOutputStream(
+				length / 3 + 64);
+		member.write(HEADER, 0, HEADER.length);
+		byte[] buffer = new byte[32 * 1024];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			member.write(buffer, 0, n);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		writeIntLE(member, (int) crc.getValue());
+		writeIntLE(member, length);
+		return member.toByteArray();
+	}
+
+	private static void writeIntLE(ByteArrayOutputStream out, int value) {
+		out.write(value & 0xff);
+		out.write((value >> 8) & 0xff);
+		out.write((value >> 16) & 0xff);
+		out.write((value >> 24) & 0xff);
+	}
+}
@@ -0,0 +1,318 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.fuberlin.wbsg.ccrdf.ExtractionPipeline.RecordWithOffsetsAndURL;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
+
+/**
+ * Decodes a local WARC file on several cores. Common Crawl WARC files are
+ * concatenations of gzip members, one per WARC record, so each member can be
+ * inflated on its own. The file is split into chunks, the members starting in
+ * a chunk are decoded by one task of a shared fork/join pool, and a number of
+ * chunks are decoded ahead of the extraction threads. Records are returned in
+ * file order.
+ *
+ * Chunk boundaries do not know where members start, so every task but the
+ * first looks for the first gzip header in its chunk that inflates to a
+ * complete WARC record with a matching CRC. A task decodes all members that
+ * start in its chunk, the last one may end in the next chunk. The start and
+ * end offsets of a record are the compressed offsets of its member.
+ */
+public class ParallelGzipRecordReader implements ExtractionPipeline.RecordReader {
+	private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final byte[] WARC_MAGIC = { 'W', 'A', 'R', 'C', '/' };
+
+	// shared by all readers of the JVM, sized to the number of cores
+	private static final ForkJoinPool pool = new ForkJoinPool();
+
+	private final MappedFile file;
+	private final int decodeAhead;
+	private final long chunks;
+	private long nextChunk = 0;
+	private final Deque<Future<List<RecordWithOffsetsAndURL>>> decoding = new ArrayDeque<Future<List<RecordWithOffsetsAndURL>>>();
+	private Iterator<RecordWithOffsetsAndURL> current = Collections
+			.<RecordWithOffsetsAndURL> emptyList().iterator();
+
+	/**
+	 * @param decodeAhead
+	 *            number of chunks decoded ahead of the caller
+	 */
+	public ParallelGzipRecordReader(File f, int decodeAhead) throws IOException {
+		this.file = new MappedFile(f);
+		this.decodeAhead = Math.max(1, decodeAhead);
+		this.chunks = (file.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	}
+
+	@Override
+	public RecordWithOffsetsAndURL next() throws IOException {
+		while (!current.hasNext()) {
+			while (decoding.size() < decodeAhead && nextChunk < chunks) {
+				final long chunk = nextChunk++;
+				decoding.add(pool.submit(new Callable<List<RecordWithOffsetsAndURL>>() {
+					@Override
+					public List<RecordWithOffsetsAndURL> call() throws IOException {
+						return decodeChunk(chunk);
+					}
+				}));
+			}
+			if (decoding.isEmpty())
+				return null;
+			try {
+				current = decoding.poll().get().iterator();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while decoding", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new IOException("Decoding failed", e.getCause());
+			}
+		}
+		return current.next();
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Future<?> f : decoding) {
+			f.cancel(true);
+		}
+		decoding.clear();
+		file.close();
+	}
+
+	private List<RecordWithOffsetsAndURL> decodeChunk(long chunk)
+			throws IOException {
+		long chunkStart = chunk * CHUNK_SIZE;
+		long chunkEnd = Math.min(file.size(), chunkStart + CHUNK_SIZE);
+		List<RecordWithOffsetsAndURL> records = new ArrayList<RecordWithOffsetsAndURL>();
+
+		Member m = findMember(chunkStart, chunkEnd);
+		while (m != null) {
+			RecordWithOffsetsAndURL item = parseRecord(m);
+			if (item != null)
+				records.add(item);
+			if (m.end >= chunkEnd)
+				break;
+			Member following = inflateMember(m.end);
+			// skip over damaged data like the sequential reader does
+			m = following != null ? following : findMember(m.end + 1, chunkEnd);
+		}
+		return records;
+	}
+
+	// the first valid member starting in [from, to)
+	private Member findMember(long from, long to) {
+		byte[] buf = new byte[BUFFER_SIZE];
+		long pos = from;
+		while (pos < to) {
+			int n = file.read(pos, buf, 0, buf.length);
+			if (n < 3)
+				return null;
+			for (int i = 0; i < n - 2 && pos + i < to; i++) {
+				if (buf[i] == (byte) 0x1f && buf[i + 1] == (byte) 0x8b
+						&& buf[i + 2] == 8) {
+					Member m = inflateMember(pos + i);
+					if (m != null)
+						return m;
+				}
+			}
+			// keep the last two bytes, a header may span two reads
+			pos += n - 2;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the member starting at the given position, or null if there is
+	 *         no complete gzip member holding a WARC record
+	 */
+	private Member inflateMember(long start) {
+		Input in = new Input(start);
+		if (in.read() != 0x1f || in.read() != 0x8b || in.read() != 8)
+			return null;
+		int flags = in.read();
+		if (flags < 0 || (flags & 0xe0) != 0)
+			return null;
+		// mtime, extra flags, os
+		for (int i = 0; i < 6; i++) {
+			if (in.read() < 0)
+				return null;
+		}
+		if ((flags & 4) != 0) {
+			int b0 = in.read();
+			int b1 = in.read();
+			if (b1 < 0)
+				return null;
+			for (int i = (b1 << 8) | b0; i > 0; i--) {
+				if (in.read() < 0)
+					return null;
+			}
+		}
+		for (int flag : new int[] { 8, 16 }) {
+			if ((flags & flag) != 0) {
+				int b;
+				while ((b = in.read()) > 0) {
+				}
+				if (b < 0)
+					return null;
+			}
+		}
+		if ((flags & 2) != 0 && (in.read() < 0 || in.read() < 0))
+			return null;
+
+		Inflater inflater = new Inflater(true);
+		try {
+			byte[] out = new byte[BUFFER_SIZE];
+			int length = 0;
+			while (!inflater.finished()) {
+				if (inflater.needsInput()) {
+					if (!in.feed(inflater))
+						return null;
+				}
+				if (length == out.length) {
+					if (out.length > Integer.MAX_VALUE / 2)
+						return null;
+					byte[] grown = new byte[out.length * 2];
+					System.arraycopy(out, 0, grown, 0, length);
+					out = grown;
+				}
+				int n = inflater.inflate(out, length, out.length - length);
+				if (n == 0 && inflater.needsDictionary())
+					return null;
+				int checked = length;
+				length += n;
+				// reject false positives early
+				for (int i = checked; i < Math.min(length, WARC_MAGIC.length); i++) {
+					if (out[i] != WARC_MAGIC[i])
+						return null;
+				}
+			}
+			if (length < WARC_MAGIC.length)
+				return null;
+			in.unread(inflater.getRemaining());
+
+			long crc = in.readIntLE();
+			long size = in.readIntLE();
+			CRC32 check = new CRC32();
+			check.update(out, 0, length);
+			if (crc != check.getValue() || size != (length & 0xffffffffL))
+				return null;
+			return new Member(start, in.position(), out, length);
+		} catch (DataFormatException e) {
+			return null;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static RecordWithOffsetsAndURL parseRecord(Member m) {
+		WarcReader reader = null;
+		try {
+			reader = WarcReaderFactory
+					.getReaderUncompressed(new ByteArrayInputStream(m.data, 0,
+							m.length));
+			WarcRecord wr = reader.getNextRecord();
+			if (wr == null)
+				return null;
+			RecordWithOffsetsAndURL item = ExtractionPipeline
+					.toResponseRecord(wr);
+			if (item != null) {
+				item.start = m.start;
+				item.end = m.end;
+			}
+			return item;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (reader != null)
+				reader.close();
+		}
+	}
+
+	private static class Member {
+		final long start;
+		final long end;
+		final byte[] data;
+		final int length;
+
+		Member(long start, long end, byte[] data, int length) {
+			this.start = start;
+			this.end = end;
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	// buffered reads of the mapped file from a given position
+	private class Input {
+		private final byte[] buf = new byte[BUFFER_SIZE];
+		private long bufStart;
+		private int bufLen = 0;
+		private int bufPos = 0;
+
+		Input(long position) {
+			this.bufStart = position;
+		}
+
+		long position() {
+			return bufStart + bufPos;
+		}
+
+		private boolean refill() {
+			bufStart += bufLen;
+			bufPos = 0;
+			bufLen = Math.max(0, file.read(bufStart, buf, 0, buf.length));
+			return bufLen > 0;
+		}
+
+		int read() {
+			if (bufPos == bufLen && !refill())
+				return -1;
+			return buf[bufPos++] & 0xff;
+		}
+
+		long readIntLE() {
+			long v = 0;
+			for (int i = 0; i < 4; i++) {
+				int b = read();
+				if (b < 0)
+					return -1;
+				v |= ((long) b) << (8 * i);
+			}
+			return v;
+		}
+
+		// hands the rest of the buffer to the inflater
+		boolean feed(Inflater inflater) {
+			if (bufPos == bufLen && !refill())
+				return false;
+			inflater.setInput(buf, bufPos, bufLen - bufPos);
+			bufPos = bufLen;
+			return true;
+		}
+
+		// gives back input the inflater did not consume
+		void unread(int n) {
+			bufPos -= n;
+		}
+	}
+}
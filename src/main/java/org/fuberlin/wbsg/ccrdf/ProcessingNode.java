@@ -81,6 +81,18 @@ public abstract class ProcessingNode {
 		return value.trim();
 	}
 
+	/**
+	 * Returns property value for a certain key, or the given default if the
+	 * property is not set.
+	 */
+	public String getOrDefault(String key, String defaultValue) {
+		String value = config().getProperty(key);
+		if (value == null || value.trim().equals("")) {
+			return defaultValue;
+		}
+		return value.trim();
+	}
+
 	protected AmazonSimpleDBClient getDbClient() {
 		if (sdb == null) {
 			sdb = new AmazonSimpleDBClient(getAwsCredentials());
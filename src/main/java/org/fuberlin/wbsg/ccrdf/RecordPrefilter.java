@@ -0,0 +1,102 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Byte level scan of a response payload that decides whether it can contain a
+ * table at all, so records without tables do not need to be parsed. Jsoup
+ * only creates table elements for an explicit table tag, and the start tag
+ * has to be followed by whitespace, '/' or '>', so a page without such a
+ * sequence in its (ASCII compatible) bytes yields no tables. Pages with a
+ * UTF-16 byte order mark or a charset in the HTTP header that does not encode
+ * the tags as ASCII, e.g. UTF-16 or UTF-32, are not scanned.
+ */
+public class RecordPrefilter {
+	public static enum PREFILTER_COUNTERS {
+		RECORDS_WITHOUT_TABLE_TAG, RECORDS_WITH_FEW_ROW_TAGS
+	}
+
+	private static final byte[] TABLE = { '<', 't', 'a', 'b', 'l', 'e' };
+	private static final byte[] TR = { '<', 't', 'r' };
+	private static final String ASCII_TAGS = "<TABLE tr>";
+
+	// whether a charset encodes the tags like ASCII
+	private static final ConcurrentHashMap<Charset, Boolean> asciiCompatible = new ConcurrentHashMap<Charset, Boolean>();
+
+	private final int minRowTags;
+
+	/**
+	 * @param minRowTags
+	 *            minimum number of tr tags of a page, 0 to disable. Jsoup
+	 *            inserts missing tr elements, so pages without tr tags may
+	 *            still contain usable tables.
+	 */
+	public RecordPrefilter(int minRowTags) {
+		this.minRowTags = minRowTags;
+	}
+
+	/**
+	 * @param contentType
+	 *            value of the HTTP Content-Type header, may be null
+	 * @return the reason for skipping the payload, null if it has to be
+	 *         parsed
+	 */
+	public PREFILTER_COUNTERS check(byte[] payload, String contentType) {
+		// the tags are not ASCII in UTF-16, leave those pages to Jsoup
+		if (payload.length >= 2
+				&& ((payload[0] == (byte) 0xfe && payload[1] == (byte) 0xff) || (payload[0] == (byte) 0xff && payload[1] == (byte) 0xfe)))
+			return null;
+		Charset charset = PageDecoder.headerCharset(contentType);
+		if (charset != null && !isAsciiCompatible(charset))
+			return null;
+		if (indexOfTag(payload, TABLE, 0) < 0)
+			return PREFILTER_COUNTERS.RECORDS_WITHOUT_TABLE_TAG;
+		if (minRowTags > 0) {
+			int rows = 0;
+			int i = indexOfTag(payload, TR, 0);
+			while (i >= 0 && ++rows < minRowTags) {
+				i = indexOfTag(payload, TR, i + TR.length);
+			}
+			if (rows < minRowTags)
+				return PREFILTER_COUNTERS.RECORDS_WITH_FEW_ROW_TAGS;
+		}
+		return null;
+	}
+
+	private static boolean isAsciiCompatible(Charset charset) {
+		Boolean compatible = asciiCompatible.get(charset);
+		if (compatible == null) {
+			compatible = Arrays.equals(ASCII_TAGS.getBytes(charset),
+					ASCII_TAGS.getBytes(PageDecoder.DEFAULT_CHARSET));
+			asciiCompatible.put(charset, compatible);
+		}
+		return compatible;
+	}
+
+	// position of the next start tag with the given (lower case) name
+	private static int indexOfTag(byte[] data, byte[] tag, int from) {
+		int last = data.length - tag.length;
+		outer: for (int i = from; i < last; i++) {
+			if (data[i] != '<')
+				continue;
+			for (int j = 1; j < tag.length; j++) {
+				// ASCII letters only differ in bit 0x20
+				if ((data[i + j] | 0x20) != tag[j])
+					continue outer;
+			}
+			switch (data[i + tag.length]) {
+			case ' ':
+			case '\t':
+			case '\n':
+			case '\r':
+			case '\f':
+			case '/':
+			case '>':
+				return i;
+			}
+		}
+		return -1;
+	}
+}
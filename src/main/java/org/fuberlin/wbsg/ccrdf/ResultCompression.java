@@ -0,0 +1,94 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression of the result files. With "gzip" a result file is compressed
+ * on the thread that writes it, with "pgzip" in blocks by a
+ * {@link ParallelGzipOutputStream} on a pool of threads, which is shared by
+ * all result files of the JVM. Both write files any gzip tool reads.
+ */
+public class ResultCompression {
+	public static final String CODEC_GZIP = "gzip";
+	public static final String CODEC_PARALLEL_GZIP = "pgzip";
+
+	// uncompressed bytes per gzip member with pgzip
+	static final int BLOCK_SIZE = 1024 * 1024;
+
+	private static ExecutorService pool = null;
+
+	private final String codec;
+	private final int level;
+	private final int threads;
+
+	/**
+	 * @param level
+	 *            deflate level, 1 (fastest) to 9 (smallest), or -1 for the
+	 *            default
+	 * @param threads
+	 *            compression threads of the JVM with pgzip, set by the first
+	 *            instance that uses them
+	 */
+	public ResultCompression(String codec, int level, int threads) {
+		if (!codec.equals(CODEC_GZIP) && !codec.equals(CODEC_PARALLEL_GZIP))
+			throw new IllegalArgumentException("Unknown result codec " + codec);
+		if (level != Deflater.DEFAULT_COMPRESSION
+				&& (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION))
+			throw new IllegalArgumentException("Invalid compression level "
+					+ level);
+		this.codec = codec;
+		this.level = level;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * gzip at the default level
+	 */
+	public ResultCompression() {
+		this(CODEC_GZIP, Deflater.DEFAULT_COMPRESSION, 1);
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return a stream that compresses everything written to it into the
+	 *         given output, and closes the output when it is closed
+	 */
+	public OutputStream compress(OutputStream output) throws IOException {
+		if (codec.equals(CODEC_PARALLEL_GZIP)) {
+			// two blocks per thread keep the pool busy while the members
+			// are written
+			return new ParallelGzipOutputStream(output, getPool(threads),
+					level, BLOCK_SIZE, 2 * threads);
+		}
+		return new GZIPOutputStream(output, 64 * 1024) {
+			{
+				def.setLevel(level);
+			}
+		};
+	}
+
+	private static synchronized ExecutorService getPool(int threads) {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private int serial = 0;
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "compression-" + serial++);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+}
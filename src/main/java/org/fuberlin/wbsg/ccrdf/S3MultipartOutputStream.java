@@ -0,0 +1,111 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+
+/**
+ * Uploads everything written to it to a single S3 object. Data is buffered
+ * until a part is full and then shipped as one part of a multipart upload, so
+ * at most one part is held in memory. Output that never fills a part is
+ * uploaded with a plain put on close.
+ */
+public class S3MultipartOutputStream extends OutputStream {
+	private static Logger log = Logger.getLogger(S3MultipartOutputStream.class);
+
+	// S3 rejects smaller parts, except for the last one
+	public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+	private final S3Service storage;
+	private final String bucket;
+	private final String key;
+	private final int partSize;
+
+	private ByteArrayOutputStream buffer;
+	private MultipartUpload upload = null;
+	private List<MultipartPart> parts = new ArrayList<MultipartPart>();
+	private boolean closed = false;
+
+	public S3MultipartOutputStream(S3Service storage, String bucket,
+			String key, int partSize) {
+		this.storage = storage;
+		this.bucket = bucket;
+		this.key = key;
+		this.partSize = Math.max(MIN_PART_SIZE, partSize);
+		this.buffer = new ByteArrayOutputStream(this.partSize);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		buffer.write(b);
+		if (buffer.size() >= partSize)
+			uploadPart();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		buffer.write(b, off, len);
+		if (buffer.size() >= partSize)
+			uploadPart();
+	}
+
+	private void uploadPart() throws IOException {
+		try {
+			if (upload == null)
+				upload = storage.multipartStartUpload(bucket, new S3Object(key));
+			S3Object part = new S3Object(key, buffer.toByteArray());
+			parts.add(storage.multipartUploadPart(upload, parts.size() + 1, part));
+		} catch (S3ServiceException | NoSuchAlgorithmException e) {
+			throw new IOException("Unable to upload part " + (parts.size() + 1)
+					+ " of " + key, e);
+		}
+		buffer.reset();
+	}
+
+	/**
+	 * Uploads the remaining data and completes the upload.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			if (upload == null) {
+				storage.putObject(bucket, new S3Object(key, buffer.toByteArray()));
+			} else {
+				if (buffer.size() > 0)
+					uploadPart();
+				storage.multipartCompleteUpload(upload, parts);
+			}
+		} catch (S3ServiceException | NoSuchAlgorithmException e) {
+			throw new IOException("Unable to complete upload of " + key, e);
+		}
+		buffer = null;
+	}
+
+	/**
+	 * Discards the upload, parts already shipped are deleted from S3.
+	 */
+	public void abort() {
+		closed = true;
+		buffer = null;
+		if (upload == null)
+			return;
+		try {
+			storage.multipartAbortUpload(upload);
+		} catch (S3ServiceException e) {
+			log.warn("Unable to abort upload of " + key, e);
+		}
+	}
+}
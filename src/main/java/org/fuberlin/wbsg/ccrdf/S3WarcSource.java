@@ -0,0 +1,30 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+
+/**
+ * Reads WARC files from an S3 bucket.
+ */
+public class S3WarcSource implements WarcSource {
+	private final S3Service storage;
+	private final String bucket;
+
+	public S3WarcSource(S3Service storage, String bucket) {
+		this.storage = storage;
+		this.bucket = bucket;
+	}
+
+	@Override
+	public InputStream open(String key) throws IOException {
+		try {
+			return storage.getObject(bucket, key).getDataInputStream();
+		} catch (ServiceException e) {
+			throw new IOException("Unable to get " + key + " from bucket "
+					+ bucket, e);
+		}
+	}
+}
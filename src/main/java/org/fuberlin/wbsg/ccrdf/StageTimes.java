@@ -0,0 +1,137 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import webreduce.extraction.LatencyHistogram;
+import webreduce.extraction.StatsKeeper;
+
+/**
+ * Durations of the extraction stages and counters of all files extracted by
+ * this JVM, as an MBean named {@value #OBJECT_NAME}, so the workers can be
+ * watched with jconsole or any other JMX client while they run.
+ */
+public class StageTimes implements StageTimesMBean {
+	private static Logger log = Logger.getLogger(StageTimes.class);
+
+	public static final String OBJECT_NAME = "org.fuberlin.wbsg.ccrdf:type=StageTimes";
+
+	private static StageTimes instance = null;
+
+	private final StatsKeeper.EnumStats totals = new StatsKeeper.EnumStats();
+	private final AtomicLong filesTotal = new AtomicLong();
+	private final AtomicLong pagesTotal = new AtomicLong();
+	private final AtomicLong pagesErrors = new AtomicLong();
+
+	/**
+	 * @return the instance of the JVM, registered with the platform MBean
+	 *         server when it is first used
+	 */
+	public static synchronized StageTimes get() {
+		if (instance == null) {
+			instance = new StageTimes();
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				server.registerMBean(instance, new ObjectName(OBJECT_NAME));
+			} catch (JMException e) {
+				log.warn("Could not register " + OBJECT_NAME, e);
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Adds the counters, durations and page counts of an extracted file.
+	 */
+	public void addFile(StatsKeeper.EnumStats fileStats, long pages,
+			long errors) {
+		totals.add(fileStats);
+		filesTotal.incrementAndGet();
+		pagesTotal.addAndGet(pages);
+		pagesErrors.addAndGet(errors);
+	}
+
+	/**
+	 * @return a copy of the counters and durations of all files so far
+	 */
+	public StatsKeeper.EnumStats getTotals() {
+		return totals.snapshot();
+	}
+
+	@Override
+	public String[] getStageNames() {
+		Map<String, LatencyHistogram> times = new TreeMap<String, LatencyHistogram>(
+				totals.timesAsMap());
+		return times.keySet().toArray(new String[times.size()]);
+	}
+
+	@Override
+	public long getCount(String stage) {
+		LatencyHistogram histogram = totals.timesAsMap().get(stage);
+		return histogram == null ? 0 : histogram.getCount();
+	}
+
+	@Override
+	public double getTotalSeconds(String stage) {
+		LatencyHistogram histogram = totals.timesAsMap().get(stage);
+		return histogram == null ? 0 : histogram.getTotal() / 1e9;
+	}
+
+	@Override
+	public double getP50Millis(String stage) {
+		LatencyHistogram histogram = totals.timesAsMap().get(stage);
+		return histogram == null ? 0 : histogram.getPercentile(0.5) / 1e6;
+	}
+
+	@Override
+	public double getP99Millis(String stage) {
+		LatencyHistogram histogram = totals.timesAsMap().get(stage);
+		return histogram == null ? 0 : histogram.getPercentile(0.99) / 1e6;
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+		return new TreeMap<String, Long>(totals.statsAsMap());
+	}
+
+	@Override
+	public String getSummary() {
+		Map<String, LatencyHistogram> times = new TreeMap<String, LatencyHistogram>(
+				totals.timesAsMap());
+		StringBuilder summary = new StringBuilder();
+		for (Map.Entry<String, LatencyHistogram> e : times.entrySet()) {
+			LatencyHistogram histogram = e.getValue();
+			summary.append(String.format(Locale.ROOT,
+					"%s: %d times, %.3f s, p50 %.3f ms, p99 %.3f ms%n",
+					e.getKey(), histogram.getCount(),
+					histogram.getTotal() / 1e9,
+					histogram.getPercentile(0.5) / 1e6,
+					histogram.getPercentile(0.99) / 1e6));
+		}
+		return summary.toString();
+	}
+
+	@Override
+	public long getFilesTotal() {
+		return filesTotal.get();
+	}
+
+	@Override
+	public long getPagesTotal() {
+		return pagesTotal.get();
+	}
+
+	@Override
+	public long getPagesErrors() {
+		return pagesErrors.get();
+	}
+}
@@ -0,0 +1,30 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link StageTimes}.
+ */
+public interface StageTimesMBean {
+	public String[] getStageNames();
+
+	public long getCount(String stage);
+
+	public double getTotalSeconds(String stage);
+
+	public double getP50Millis(String stage);
+
+	public double getP99Millis(String stage);
+
+	// counters of the extraction algorithms, by name
+	public Map<String, Long> getCounters();
+
+	// one line per stage with count, total, p50 and p99
+	public String getSummary();
+
+	public long getFilesTotal();
+
+	public long getPagesTotal();
+
+	public long getPagesErrors();
+}
@@ -0,0 +1,12 @@
+package org.fuberlin.wbsg.ccrdf;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where the Worker reads its compressed WARC files from. Keys are the object
+ * keys used in the job queue, relative to the data bucket.
+ */
+public interface WarcSource {
+	public InputStream open(String key) throws IOException;
+}
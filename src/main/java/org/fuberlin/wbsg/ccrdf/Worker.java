@@ -1,450 +1,629 @@
-package org.fuberlin.wbsg.ccrdf;
-
-import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.io.Writer;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.nio.charset.IllegalCharsetNameException;
-import java.nio.charset.UnsupportedCharsetException;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.UUID;
-import java.util.zip.GZIPOutputStream;
-
-import org.apache.commons.io.IOUtils;
-import org.apache.log4j.Logger;
-import org.jets3t.service.S3ServiceException;
-import org.jets3t.service.model.S3Object;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jwat.warc.WarcReader;
-import org.jwat.warc.WarcReaderFactory;
-import org.jwat.warc.WarcRecord;
-
-import webreduce.data.Dataset;
-import webreduce.extraction.DocumentMetadata;
-import webreduce.extraction.ExtractionAlgorithm;
-import webreduce.extraction.TableExtractionModule;
-
-import com.amazonaws.services.sqs.model.DeleteMessageRequest;
-import com.amazonaws.services.sqs.model.Message;
-import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
-import com.amazonaws.services.sqs.model.ReceiveMessageResult;
-import com.google.inject.Guice;
-import com.google.inject.Injector;
-
-/**
- * Worker node implementation, connects to queue, takes file name to process,
- * loads file, extracts tables, and writes extracted tables back to s3 and
- * statistics to simpleDB. If anything goes wrong, the message is not removed
- * from the queue and another node can have a shot.
- */
-public class Worker extends ProcessingNode {
-	private static Logger log = Logger.getLogger(Worker.class);
-
-	protected final String dataBucket = getOrCry("dataBucket");
-	protected final String resultBucket = getOrCry("resultBucket");
-	private final int retryLimit = Integer.parseInt(getOrCry("jobRetryLimit"));
-	private static Injector injector = Guice.createInjector(new TableExtractionModule());
-
-	private StatHandler dataStatHandler = null;
-	private StatHandler errorStatHandler = null;
-
-	private static class RecordWithOffsetsAndURL {
-		public byte[] bytes;
-		public long start;
-		public long end;
-		public String url;
-
-		public RecordWithOffsetsAndURL(byte[] bytes, long start, long end, String url) {
-			super();
-			this.bytes = bytes;
-			this.start = start;
-			this.end = end;
-			this.url = url;
-		}
-	}
-	
-	public static class WorkerThread extends Thread {
-		private static final String WARC_TARGET_URI = "WARC-Target-URI";
-		private Timer timer = new Timer();
-		int timeLimit = 0;
-
-		public WorkerThread() {
-		}
-
-		public WorkerThread(int timeLimitMsec) {
-			this();
-			this.timeLimit = timeLimitMsec;
-		}
-
-		public void run() {
-			Worker worker = new Worker();
-			if (timeLimit < 1) {
-				timeLimit = Integer.parseInt(worker.getOrCry("jobTimeLimit")) * 1000;
-			}
-
-			while (true) {
-				timer = new Timer();
-				final WorkerThread t = this;
-				timer.schedule(new TimerTask() {
-					@Override
-					public void run() {
-						log.warn("Killing worker thread, timeout expired.");
-						t.interrupt();
-					}
-				}, timeLimit);
-
-				String inputFileKey = "";
-
-				try {
-					// receive task message from queue
-					ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(
-							worker.getQueueUrl())
-							.withAttributeNames("ApproximateReceiveCount");
-					receiveMessageRequest.setMaxNumberOfMessages(1);
-					ReceiveMessageResult queueRes = worker.getQueue()
-							.receiveMessage(receiveMessageRequest);
-					if (queueRes.getMessages().size() < 1) {
-						log.warn("Queue is empty");
-						continue;
-					}
-					Message jobMessage = queueRes.getMessages().get(0);
-
-					/**
-					 * messages which went back to the queue more than the
-					 * amount of times defined in the configuration entry
-					 * "jobRetryLimit" are discarded, probably contain nasty
-					 * data we cannot parse.
-					 */
-
-					if (Integer.parseInt(jobMessage.getAttributes().get(
-							"ApproximateReceiveCount")) > worker.retryLimit) {
-						log.warn("Discarding message " + jobMessage.getBody());
-						worker.getQueue().deleteMessage(
-								new DeleteMessageRequest(worker.getQueueUrl(),
-										jobMessage.getReceiptHandle()));
-
-						// store this information in sdb
-						Map<String, String> statData = new HashMap<String, String>();
-						statData.put("message", "Message Discarded");
-
-						try {
-							statData.put("node", InetAddress.getLocalHost()
-									.getHostName());
-						} catch (UnknownHostException e1) {
-							// ignore
-						}
-						statData.put("file", jobMessage.getBody());
-						statData.put("datetime", Calendar.getInstance()
-								.getTime().toString());
-
-						worker.getErrorStatHandler().addStats(
-								UUID.randomUUID().toString(), statData);
-						worker.getErrorStatHandler().flush();
-						continue;
-					}
-
-					/**
-					 * retrieve data file from s3, and unpack it using gzip
-					 */
-					inputFileKey = jobMessage.getBody();
-					log.info("Now working on " + inputFileKey);
-
-					/**
-					 * get file from s3 and process with zipped arc.
-					 */
-					S3Object inputObject = worker.getStorage().getObject(
-							worker.dataBucket, inputFileKey);
-
-					/**
-					 * Read all page entries from file and run extractor on them
-					 */
-
-					log.info("Extracting data from " + inputFileKey + " ...");
-					WarcReader warcReader = WarcReaderFactory
-							.getReaderCompressed(inputObject
-									.getDataInputStream());
-
-					long pagesTotal = 0;
-					long pagesErrors = 0;
-					long start = System.currentTimeMillis();
-
-					ExtractionAlgorithm ea = injector.getInstance(ExtractionAlgorithm.class);
-
-					// read all entries in the ARC file
-					RecordWithOffsetsAndURL item;
-					item = getNextResponseRecord(warcReader);
-					List<Dataset> result = new ArrayList<>();
-					while (item != null) {
-						List<Dataset> docResult;
-						try {
-							Document doc;
-							DocumentMetadata dm = new DocumentMetadata(
-									item.start, item.end, inputFileKey, item.url);
-							
-							try {
-								// try parsing with charset detected from doc
-								doc = Jsoup.parse(new ByteArrayInputStream(
-										item.bytes), null, "");
-								docResult = ea.extract(doc, dm);
-							} catch (IllegalCharsetNameException
-									| UnsupportedCharsetException e) {
-								try {
-									// didnt work, try parsing with utf-8 as
-									// charset
-									doc = Jsoup.parse(new ByteArrayInputStream(
-											item.bytes), "UTF-8", "");
-									docResult = ea.extract(doc, dm);
-								} catch (IllegalCharsetNameException
-										| UnsupportedCharsetException e2) {
-									// didnt work either, no result
-									docResult = new ArrayList<Dataset>();
-								}
-							}
-						} catch (Exception e) {
-							e.printStackTrace();
-							docResult = new ArrayList<>();
-						}
-						// add per-doc result to per-warc-file result
-						if (docResult != null)
-							result.addAll(docResult);
-						pagesTotal++;
-						// next record with one retry
-						item = getNextResponseRecord(warcReader);
-					}
-					warcReader.close();
-
-					// upload result to S3
-					upload(worker, inputFileKey, result);
-
-					double duration = (System.currentTimeMillis() - start) / 1000.0;
-					double rate = (pagesTotal * 1.0) / duration;
-
-					// create data file statistics
-					Map<String, String> dataStats = new HashMap<String, String>();
-					for (Map.Entry<String, Integer> entry : ea.getStatsKeeper()
-							.statsAsMap().entrySet()) {
-						dataStats.put(entry.getKey(),
-								String.valueOf(entry.getValue()));
-					}
-					dataStats.put("duration", Double.toString(duration));
-					dataStats.put("rate", Double.toString(rate));
-					dataStats.put("pagesTotal", Long.toString(pagesTotal));
-					dataStats.put("pagesErrors", Long.toString(pagesErrors));
-
-					log.info("Extracted data from " + inputFileKey
-							+ " - parsed " + pagesTotal + " pages in "
-							+ duration + " seconds, " + rate + " pages/sec");
-
-					/**
-					 * Create overall statistics for this data file
-					 */
-					dataStats.put("size",
-							Long.toString(inputObject.getContentLength()));
-					worker.getDataStatHandler().addStats(inputFileKey,
-							dataStats);
-
-					/**
-					 * force statistics being persisted
-					 */
-					worker.getDataStatHandler().flush();
-
-					/**
-					 * remove message from queue. If an Exception is thrown or
-					 * the node dies before finishing its task, this does not
-					 * occur and the message is re-queued for another node
-					 */
-					worker.getQueue().deleteMessage(
-							new DeleteMessageRequest(worker.getQueueUrl(),
-									jobMessage.getReceiptHandle()));
-
-					log.info("Finished processing file " + inputFileKey);
-
-				} catch (Exception e) {
-					log.warn("Unable to finish processing ("
-							+ e.getClass().getSimpleName() + ": "
-							+ e.getMessage() + ")");
-					e.printStackTrace();
-					log.warn("Stracktrace", e.fillInStackTrace());
-
-					// put error information into sdb for later analyis
-					Map<String, String> statData = new HashMap<String, String>();
-					statData.put("exception", e.getClass().getSimpleName());
-					String message = e.getMessage();
-					if (message == null) {
-						message = e.getClass().getName();
-					}
-					statData.put("message", message);
-					String st = Worker.getStackTrace(e);
-					statData.put("stacktrace",
-							st.substring(0, Math.min(1024, st.length())));
-
-					try {
-						statData.put("node", InetAddress.getLocalHost()
-								.getHostName());
-					} catch (UnknownHostException e1) {
-						// ignore
-					}
-					statData.put("file", inputFileKey);
-					statData.put("datetime", Calendar.getInstance().getTime()
-							.toString());
-
-					worker.getErrorStatHandler().addStats(
-							UUID.randomUUID().toString(), statData);
-					worker.getErrorStatHandler().flush();
-
-				}
-
-				// on failures sleep a bit
-				timer.cancel();
-			}
-		}
-
-		private RecordWithOffsetsAndURL getNextResponseRecord(WarcReader warcReader)
-				throws IOException {
-			WarcRecord wr;
-			while (true) {
-				try {
-					wr = warcReader.getNextRecord();
-				} catch (IOException e) {
-					continue;
-				}
-				if (wr == null)
-					return null;
-
-				long offset = warcReader.getStartOffset();
-				String type = wr.getHeader("WARC-Type").value;
-				if (type.equals("response")) {
-					byte[] rawContent = IOUtils.toByteArray(wr
-							.getPayloadContent());
-					long endOffset = warcReader.getOffset();
-					String url = wr.getHeader(WARC_TARGET_URI).value;
-					return new RecordWithOffsetsAndURL(rawContent, offset, endOffset, url);
-				}
-			}
-		}
-
-		private void upload(Worker worker, String inputFileKey,
-				Iterable<Dataset> results) throws IOException,
-				UnknownHostException, S3ServiceException, NoSuchAlgorithmException {
-
-			long threadId = ThreadGuard.currentThread().getId();
-			File tmpFile = new File("/tmp/" + threadId
-					+ ".tmp");
-			FileOutputStream output = new FileOutputStream(tmpFile);
-			Writer writer = null;
-			try {
-				writer = new BufferedWriter(new OutputStreamWriter(
-						new GZIPOutputStream(output), "UTF-8"));
-				for (Dataset res : results) {
-					writer.append(res.toJson());
-					writer.append("\n");
-				}
-			} finally {
-				if (writer != null)
-					writer.close();
-				output.close();
-			}
-			if (tmpFile.exists()) {
-				S3Object outObject = new S3Object(tmpFile);
-				outObject.setKey(makeOutputFileKey(inputFileKey));
-				worker.getStorage().putObject(worker.resultBucket, outObject);
-				tmpFile.delete();
-			}
-		}
-
-		private String makeOutputFileKey(String inputFileKey) {
-			int idx = inputFileKey.indexOf(".warc");
-			String s = inputFileKey.substring(0, idx) + ".json.gz";
-			return s;
-		}
-	}
-
-	public StatHandler getDataStatHandler() {
-		if (dataStatHandler == null) {
-			dataStatHandler = new AmazonStatHandler(getDbClient(),
-					getOrCry("sdbdatadomain"));
-		}
-		return dataStatHandler;
-	}
-
-	public StatHandler getErrorStatHandler() {
-		if (errorStatHandler == null) {
-			errorStatHandler = new AmazonStatHandler(getDbClient(),
-					getOrCry("sdberrordomain"));
-		}
-		return errorStatHandler;
-	}
-
-	private static String getStackTrace(Throwable aThrowable) {
-		final Writer result = new StringWriter();
-		final PrintWriter printWriter = new PrintWriter(result);
-		aThrowable.printStackTrace(printWriter);
-		return result.toString();
-	}
-
-	public static class ThreadGuard extends Thread {
-		private List<Thread> threads = new ArrayList<Thread>();
-		private int threadLimit = Runtime.getRuntime().availableProcessors();
-		private int threadSerial = 0;
-		private int waitTimeSeconds = 1;
-
-		private Class<? extends Thread> threadClass;
-
-		public ThreadGuard(Class<? extends Thread> threadClass) {
-			this.threadClass = threadClass;
-		}
-
-		public void run() {
-			while (true) {
-				List<Thread> threadsCopy = new ArrayList<Thread>(threads);
-				for (Thread t : threadsCopy) {
-					if (!t.isAlive()) {
-						log.warn("Thread " + t.getName() + " died.");
-						threads.remove(t);
-					}
-				}
-				while (threads.size() < threadLimit) {
-					Thread newThread;
-					try {
-						newThread = threadClass.newInstance();
-						newThread.setName("#" + threadSerial);
-						threads.add(newThread);
-						newThread.start();
-						log.info("Started new WorkerThread, "
-								+ newThread.getName());
-						threadSerial++;
-					} catch (Exception e) {
-						log.warn("Failed to start new Thread of class "
-								+ threadClass);
-					}
-
-				}
-				try {
-					Thread.sleep(waitTimeSeconds * 1000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-	}
-
-	public static void main(String[] args) {
-		new ThreadGuard(WorkerThread.class).start();
-	}
-
-}
+package org.fuberlin.wbsg.ccrdf;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+import webreduce.data.Dataset;
+import webreduce.extraction.LatencyHistogram;
+import webreduce.extraction.StatsKeeper;
+import webreduce.extraction.TableExtractionModule;
+
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.martiansoftware.jsap.FlaggedOption;
+import com.martiansoftware.jsap.JSAP;
+import com.martiansoftware.jsap.JSAPException;
+import com.martiansoftware.jsap.JSAPResult;
+import com.martiansoftware.jsap.UnflaggedOption;
+
+/**
+ * Worker node implementation, connects to queue, takes file name to process,
+ * loads file, extracts tables, and writes extracted tables back to s3 and
+ * statistics to simpleDB. If anything goes wrong, the message is not removed
+ * from the queue and another node can have a shot.
+ */
+public class Worker extends ProcessingNode {
+	private static Logger log = Logger.getLogger(Worker.class);
+
+	// result formats, every WARC file gets one result file per format
+	public static final String FORMAT_JSON = "json";
+	public static final String FORMAT_COLUMNAR = "columnar";
+
+	protected final String dataBucket = getOrCry("dataBucket");
+	protected final String resultBucket = getOrCry("resultBucket");
+	private final int retryLimit = Integer.parseInt(getOrCry("jobRetryLimit"));
+	private final int extractionThreads = Integer.parseInt(getOrDefault(
+			"extractionThreads", "1"));
+	private final int recordQueueSize = Integer.parseInt(getOrDefault(
+			"recordQueueSize", "16"));
+	private final int uploadPartSize = Integer.parseInt(getOrDefault(
+			"uploadPartSize", "8388608"));
+	private final boolean parallelDecoding = Boolean.parseBoolean(getOrDefault(
+			"parallelDecoding", "true"));
+	private final int decodeAheadChunks = Integer.parseInt(getOrDefault(
+			"decodeAheadChunks", "4"));
+	private final boolean prefilterRecords = Boolean.parseBoolean(getOrDefault(
+			"prefilterRecords", "true"));
+	private final int prefilterMinRowTags = Integer.parseInt(getOrDefault(
+			"prefilterMinRowTags", "0"));
+	private final List<String> outputFormats = parseOutputFormats(getOrDefault(
+			"outputFormats", FORMAT_JSON));
+	private final ResultCompression resultCompression = new ResultCompression(
+			getOrDefault("resultCodec", ResultCompression.CODEC_GZIP),
+			Integer.parseInt(getOrDefault("compressionLevel", "-1")),
+			Integer.parseInt(getOrDefault("compressionThreads",
+					String.valueOf(Runtime.getRuntime().availableProcessors()))));
+	private final File statSpoolDir = new File(getOrDefault("statSpoolDir",
+			new File(System.getProperty("java.io.tmpdir"), "dwtc-stats")
+					.getPath()));
+	private static Injector injector = Guice.createInjector(new TableExtractionModule());
+
+	private StatHandler dataStatHandler = null;
+	private StatHandler errorStatHandler = null;
+
+	public static class WorkerThread extends Thread {
+		private Timer timer = new Timer();
+		int timeLimit = 0;
+
+		public WorkerThread() {
+		}
+
+		public WorkerThread(int timeLimitMsec) {
+			this();
+			this.timeLimit = timeLimitMsec;
+		}
+
+		public void run() {
+			Worker worker = new Worker();
+			if (timeLimit < 1) {
+				timeLimit = Integer.parseInt(worker.getOrCry("jobTimeLimit")) * 1000;
+			}
+
+			while (true) {
+				timer = new Timer();
+				final WorkerThread t = this;
+				timer.schedule(new TimerTask() {
+					@Override
+					public void run() {
+						log.warn("Killing worker thread, timeout expired.");
+						t.interrupt();
+					}
+				}, timeLimit);
+
+				String inputFileKey = "";
+
+				try {
+					// receive task message from queue
+					ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(
+							worker.getQueueUrl())
+							.withAttributeNames("ApproximateReceiveCount");
+					receiveMessageRequest.setMaxNumberOfMessages(1);
+					ReceiveMessageResult queueRes = worker.getQueue()
+							.receiveMessage(receiveMessageRequest);
+					if (queueRes.getMessages().size() < 1) {
+						log.warn("Queue is empty");
+						continue;
+					}
+					Message jobMessage = queueRes.getMessages().get(0);
+
+					/**
+					 * messages which went back to the queue more than the
+					 * amount of times defined in the configuration entry
+					 * "jobRetryLimit" are discarded, probably contain nasty
+					 * data we cannot parse.
+					 */
+
+					if (Integer.parseInt(jobMessage.getAttributes().get(
+							"ApproximateReceiveCount")) > worker.retryLimit) {
+						log.warn("Discarding message " + jobMessage.getBody());
+						worker.getQueue().deleteMessage(
+								new DeleteMessageRequest(worker.getQueueUrl(),
+										jobMessage.getReceiptHandle()));
+
+						// store this information in sdb
+						Map<String, String> statData = new HashMap<String, String>();
+						statData.put("message", "Message Discarded");
+
+						try {
+							statData.put("node", InetAddress.getLocalHost()
+									.getHostName());
+						} catch (UnknownHostException e1) {
+							// ignore
+						}
+						statData.put("file", jobMessage.getBody());
+						statData.put("datetime", Calendar.getInstance()
+								.getTime().toString());
+
+						worker.getErrorStatHandler().addStats(
+								UUID.randomUUID().toString(), statData);
+						continue;
+					}
+
+					/**
+					 * retrieve data file from s3, and unpack it using gzip
+					 */
+					inputFileKey = jobMessage.getBody();
+					log.info("Now working on " + inputFileKey);
+
+					/**
+					 * get file from s3, extract it and stream the results
+					 * back to s3
+					 */
+					Map<String, S3MultipartOutputStream> uploads = new LinkedHashMap<String, S3MultipartOutputStream>();
+					for (String format : worker.outputFormats) {
+						uploads.put(format, new S3MultipartOutputStream(
+								worker.getStorage(), worker.resultBucket,
+								makeOutputFileKey(inputFileKey, format),
+								worker.uploadPartSize));
+					}
+					Map<String, String> dataStats;
+					try {
+						dataStats = worker.extract(new S3WarcSource(
+								worker.getStorage(), worker.dataBucket),
+								inputFileKey, uploads);
+					} catch (Exception e) {
+						for (S3MultipartOutputStream upload : uploads.values())
+							upload.abort();
+						throw e;
+					}
+
+					/**
+					 * Store overall statistics for this data file
+					 */
+					worker.getDataStatHandler().addStats(inputFileKey,
+							dataStats);
+
+					/**
+					 * remove message from queue. If an Exception is thrown or
+					 * the node dies before finishing its task, this does not
+					 * occur and the message is re-queued for another node
+					 */
+					worker.getQueue().deleteMessage(
+							new DeleteMessageRequest(worker.getQueueUrl(),
+									jobMessage.getReceiptHandle()));
+
+					log.info("Finished processing file " + inputFileKey);
+
+				} catch (Exception e) {
+					log.warn("Unable to finish processing ("
+							+ e.getClass().getSimpleName() + ": "
+							+ e.getMessage() + ")");
+					e.printStackTrace();
+					log.warn("Stracktrace", e.fillInStackTrace());
+
+					// put error information into sdb for later analyis
+					Map<String, String> statData = new HashMap<String, String>();
+					statData.put("exception", e.getClass().getSimpleName());
+					String message = e.getMessage();
+					if (message == null) {
+						message = e.getClass().getName();
+					}
+					statData.put("message", message);
+					String st = Worker.getStackTrace(e);
+					statData.put("stacktrace",
+							st.substring(0, Math.min(1024, st.length())));
+
+					try {
+						statData.put("node", InetAddress.getLocalHost()
+								.getHostName());
+					} catch (UnknownHostException e1) {
+						// ignore
+					}
+					statData.put("file", inputFileKey);
+					statData.put("datetime", Calendar.getInstance().getTime()
+							.toString());
+
+					worker.getErrorStatHandler().addStats(
+							UUID.randomUUID().toString(), statData);
+
+				}
+
+				// on failures sleep a bit
+				timer.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Extracts the tables of the WARC file with the given key and writes them
+	 * to the given outputs, one per result format, which are closed
+	 * afterwards.
+	 *
+	 * @return statistics for the file
+	 */
+	public Map<String, String> extract(WarcSource source, String inputFileKey,
+			Map<String, ? extends OutputStream> resultOutputs)
+			throws IOException, InterruptedException {
+		/**
+		 * Read all page entries from file and run extractor on them
+		 */
+		log.info("Extracting data from " + inputFileKey + " ...");
+		// durations of the stages outside of the pipeline
+		StatsKeeper.EnumStats fileStats = new StatsKeeper.EnumStats();
+		ExtractionPipeline.RecordReader recordReader;
+		long size;
+		long fetchStart = System.nanoTime();
+		if (parallelDecoding && source instanceof LocalWarcSource) {
+			// local files allow decoding the gzip members in parallel
+			File file = ((LocalWarcSource) source).getFile(inputFileKey);
+			recordReader = new ParallelGzipRecordReader(file, decodeAheadChunks);
+			size = file.length();
+		} else {
+			recordReader = new ExtractionPipeline.WarcRecordReader(
+					source.open(inputFileKey));
+			size = -1;
+		}
+		fileStats.recordTime(StatsKeeper.STAGES.FETCH, System.nanoTime()
+				- fetchStart);
+
+		long pagesTotal = 0;
+		long pagesErrors = 0;
+		long start = System.currentTimeMillis();
+
+		// read all entries in the WARC file, parse and extract them in
+		// parallel and stream the results to the output in record order
+		ExtractionPipeline pipeline = new ExtractionPipeline(injector,
+				extractionThreads, recordQueueSize,
+				prefilterRecords ? new RecordPrefilter(prefilterMinRowTags)
+						: null);
+		try {
+			final List<ExtractionPipeline.ResultHandler> outputs = new ArrayList<ExtractionPipeline.ResultHandler>();
+			for (Map.Entry<String, ? extends OutputStream> entry : resultOutputs
+					.entrySet()) {
+				if (entry.getKey().equals(FORMAT_COLUMNAR))
+					outputs.add(new ColumnarDatasetWriter(entry.getValue(),
+							resultCompression.getLevel(), fileStats));
+				else
+					outputs.add(new DatasetWriter(entry.getValue(),
+							resultCompression, fileStats));
+			}
+			pipeline.run(recordReader, inputFileKey,
+					new ExtractionPipeline.ResultHandler() {
+						@Override
+						public void handle(List<Dataset> docResult)
+								throws IOException {
+							for (ExtractionPipeline.ResultHandler output : outputs)
+								output.handle(docResult);
+						}
+					});
+			// finishes the result files
+			closeAll(outputs);
+		} finally {
+			recordReader.close();
+		}
+		if (size < 0)
+			size = ((ExtractionPipeline.WarcRecordReader) recordReader)
+					.getBytesRead();
+		pagesTotal = pipeline.getPagesTotal();
+		pagesErrors = pipeline.getPagesErrors();
+		fileStats.add(pipeline.getStats());
+		StageTimes.get().addFile(fileStats, pagesTotal, pagesErrors);
+
+		double duration = (System.currentTimeMillis() - start) / 1000.0;
+		double rate = (pagesTotal * 1.0) / duration;
+
+		// create data file statistics
+		Map<String, String> dataStats = new HashMap<String, String>();
+		for (Map.Entry<String, Long> entry : fileStats.statsAsMap()
+				.entrySet()) {
+			dataStats.put(entry.getKey(), String.valueOf(entry.getValue()));
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : fileStats
+				.timesAsMap().entrySet()) {
+			LatencyHistogram times = entry.getValue();
+			String stage = entry.getKey();
+			dataStats.put(stage + "_COUNT", Long.toString(times.getCount()));
+			dataStats.put(stage + "_MS", formatMillis(times.getTotal()));
+			dataStats.put(stage + "_P50_MS",
+					formatMillis(times.getPercentile(0.5)));
+			dataStats.put(stage + "_P99_MS",
+					formatMillis(times.getPercentile(0.99)));
+		}
+		dataStats.put("duration", Double.toString(duration));
+		dataStats.put("rate", Double.toString(rate));
+		dataStats.put("pagesTotal", Long.toString(pagesTotal));
+		dataStats.put("pagesErrors", Long.toString(pagesErrors));
+		dataStats.put("size", Long.toString(size));
+
+		log.info("Extracted data from " + inputFileKey + " - parsed "
+				+ pagesTotal + " pages in " + duration + " seconds, " + rate
+				+ " pages/sec");
+		return dataStats;
+	}
+
+	// closes every output, even if closing an earlier one fails. The first
+	// failure is thrown, later ones are attached to it as suppressed
+	private static void closeAll(
+			List<ExtractionPipeline.ResultHandler> outputs) throws IOException {
+		IOException failure = null;
+		for (ExtractionPipeline.ResultHandler output : outputs) {
+			try {
+				((Closeable) output).close();
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+				else
+					failure.addSuppressed(e);
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	private static String formatMillis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	public static String makeOutputFileKey(String inputFileKey) {
+		return makeOutputFileKey(inputFileKey, FORMAT_JSON);
+	}
+
+	public static String makeOutputFileKey(String inputFileKey, String format) {
+		int idx = inputFileKey.indexOf(".warc");
+		String extension = format.equals(FORMAT_COLUMNAR) ? ".columnar"
+				: ".json.gz";
+		String s = inputFileKey.substring(0, idx) + extension;
+		return s;
+	}
+
+	// the comma separated formats of the outputFormats property
+	static List<String> parseOutputFormats(String value) {
+		List<String> formats = new ArrayList<String>();
+		for (String format : value.split(",")) {
+			format = format.trim();
+			if (format.isEmpty() || formats.contains(format))
+				continue;
+			if (!format.equals(FORMAT_JSON) && !format.equals(FORMAT_COLUMNAR))
+				throw new IllegalArgumentException("Unknown output format "
+						+ format);
+			formats.add(format);
+		}
+		if (formats.isEmpty())
+			throw new IllegalArgumentException("No output format given");
+		return formats;
+	}
+
+	public StatHandler getDataStatHandler() {
+		if (dataStatHandler == null) {
+			dataStatHandler = getStatHandler(getOrCry("sdbdatadomain"));
+		}
+		return dataStatHandler;
+	}
+
+	public StatHandler getErrorStatHandler() {
+		if (errorStatHandler == null) {
+			errorStatHandler = getStatHandler(getOrCry("sdberrordomain"));
+		}
+		return errorStatHandler;
+	}
+
+	// the handlers are shared by all worker threads of the JVM
+	private StatHandler getStatHandler(String domain) {
+		try {
+			return AsyncStatHandler.get(getDbClient(), domain, statSpoolDir);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to open stats spool for "
+					+ domain, e);
+		}
+	}
+
+	private static String getStackTrace(Throwable aThrowable) {
+		final Writer result = new StringWriter();
+		final PrintWriter printWriter = new PrintWriter(result);
+		aThrowable.printStackTrace(printWriter);
+		return result.toString();
+	}
+
+	/**
+	 * Offline batch mode: extracts WARC files from a local mirror of the data
+	 * bucket into a local output directory, without queue and SimpleDB.
+	 * Threads take keys from a shared queue until it is empty.
+	 */
+	public static class LocalWorkerThread extends Thread {
+		private final LocalWarcSource source;
+		private final Queue<String> keys;
+		private final File outputDir;
+		private final StatHandler statHandler = new LoggingStatHandler(true);
+
+		public LocalWorkerThread(LocalWarcSource source, Queue<String> keys,
+				File outputDir) {
+			this.source = source;
+			this.keys = keys;
+			this.outputDir = outputDir;
+		}
+
+		public void run() {
+			Worker worker = new Worker();
+			String inputFileKey;
+			while ((inputFileKey = keys.poll()) != null) {
+				Map<String, File> outputFiles = new LinkedHashMap<String, File>();
+				for (String format : worker.outputFormats) {
+					outputFiles.put(format, new File(outputDir,
+							makeOutputFileKey(inputFileKey, format)));
+				}
+				Map<String, FileOutputStream> outputs = new LinkedHashMap<String, FileOutputStream>();
+				try {
+					for (Map.Entry<String, File> entry : outputFiles.entrySet()) {
+						entry.getValue().getParentFile().mkdirs();
+						outputs.put(entry.getKey(), new FileOutputStream(entry
+								.getValue()));
+					}
+					Map<String, String> dataStats = worker.extract(source,
+							inputFileKey, outputs);
+					statHandler.addStats(inputFileKey, dataStats);
+					log.info("Finished processing file " + inputFileKey);
+				} catch (Exception e) {
+					log.warn("Unable to finish processing " + inputFileKey, e);
+					for (FileOutputStream output : outputs.values()) {
+						try {
+							output.close();
+						} catch (IOException e1) {
+							// ignore
+						}
+					}
+					for (File outputFile : outputFiles.values())
+						outputFile.delete();
+				}
+			}
+		}
+	}
+
+	private static void runLocal(String[] args) throws JSAPException,
+			IOException, InterruptedException {
+		JSAP jsap = new JSAP();
+		jsap.registerParameter(new UnflaggedOption("action")
+				.setStringParser(JSAP.STRING_PARSER).setRequired(true));
+		FlaggedOption dataDir = new FlaggedOption("dataDir")
+				.setStringParser(JSAP.STRING_PARSER).setRequired(true)
+				.setLongFlag("data-dir").setShortFlag('d');
+		dataDir.setHelp("Local directory that mirrors the data bucket");
+		jsap.registerParameter(dataDir);
+		FlaggedOption outputDir = new FlaggedOption("outputDir")
+				.setStringParser(JSAP.STRING_PARSER).setRequired(true)
+				.setLongFlag("output-dir").setShortFlag('o');
+		outputDir.setHelp("Directory the result files are written to");
+		jsap.registerParameter(outputDir);
+		FlaggedOption prefix = new FlaggedOption("prefix")
+				.setStringParser(JSAP.STRING_PARSER).setRequired(false)
+				.setLongFlag("bucket-prefix").setShortFlag('p');
+		prefix.setHelp("Prefix path of files to extract, relative to dataPrefix");
+		jsap.registerParameter(prefix);
+		FlaggedOption prefixFile = new FlaggedOption("prefixFile")
+				.setStringParser(JSAP.STRING_PARSER).setRequired(false)
+				.setLongFlag("bucket-prefix-file").setShortFlag('f');
+		prefixFile.setHelp("File including line based prefix paths of files to extract");
+		jsap.registerParameter(prefixFile);
+		FlaggedOption threads = new FlaggedOption("threads")
+				.setStringParser(JSAP.INTEGER_PARSER).setRequired(false)
+				.setLongFlag("threads").setShortFlag('t')
+				.setDefault(String.valueOf(Runtime.getRuntime()
+						.availableProcessors()));
+		threads.setHelp("Number of files extracted in parallel");
+		jsap.registerParameter(threads);
+
+		JSAPResult config = jsap.parse(args);
+		if (!config.success()) {
+			System.err.println("Usage: " + Worker.class.getName() + " "
+					+ jsap.getUsage());
+			System.err.println(jsap.getHelp());
+			System.exit(1);
+		}
+
+		// resolve prefixes the same way the 'queue' command does
+		String dataPrefix = new Worker().getOrCry("dataPrefix");
+		List<String> prefixes = new ArrayList<String>();
+		if (config.contains("prefixFile")) {
+			prefixes.addAll(LocalWarcSource.readPrefixFile(new File(config
+					.getString("prefixFile"))));
+		} else if (config.contains("prefix")) {
+			prefixes.add(config.getString("prefix"));
+		} else {
+			prefixes.add("");
+		}
+		LocalWarcSource source = new LocalWarcSource(new File(
+				config.getString("dataDir")));
+		Set<String> keys = new LinkedHashSet<String>();
+		for (String p : prefixes) {
+			keys.addAll(source.listKeys(p.isEmpty() ? dataPrefix : dataPrefix
+					+ "/" + p));
+		}
+		log.info("Extracting " + keys.size() + " local files");
+
+		Queue<String> keyQueue = new ConcurrentLinkedQueue<String>(keys);
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < config.getInt("threads"); i++) {
+			Thread t = new LocalWorkerThread(source, keyQueue, new File(
+					config.getString("outputDir")));
+			t.setName("#" + i);
+			workers.add(t);
+			t.start();
+		}
+		for (Thread t : workers) {
+			t.join();
+		}
+	}
+
+	public static class ThreadGuard extends Thread {
+		private List<Thread> threads = new ArrayList<Thread>();
+		private int threadLimit = Runtime.getRuntime().availableProcessors();
+		private int threadSerial = 0;
+		private int waitTimeSeconds = 1;
+
+		private Class<? extends Thread> threadClass;
+
+		public ThreadGuard(Class<? extends Thread> threadClass) {
+			this.threadClass = threadClass;
+		}
+
+		public void run() {
+			while (true) {
+				List<Thread> threadsCopy = new ArrayList<Thread>(threads);
+				for (Thread t : threadsCopy) {
+					if (!t.isAlive()) {
+						log.warn("Thread " + t.getName() + " died.");
+						threads.remove(t);
+					}
+				}
+				while (threads.size() < threadLimit) {
+					Thread newThread;
+					try {
+						newThread = threadClass.newInstance();
+						newThread.setName("#" + threadSerial);
+						threads.add(newThread);
+						newThread.start();
+						log.info("Started new WorkerThread, "
+								+ newThread.getName());
+						threadSerial++;
+					} catch (Exception e) {
+						log.warn("Failed to start new Thread of class "
+								+ threadClass);
+					}
+
+				}
+				try {
+					Thread.sleep(waitTimeSeconds * 1000);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws JSAPException,
+			IOException, InterruptedException {
+		if (args.length > 0 && "local".equals(args[0])) {
+			runLocal(args);
+			return;
+		}
+		new ThreadGuard(WorkerThread.class).start();
+	}
+
+}
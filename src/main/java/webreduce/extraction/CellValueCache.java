@@ -0,0 +1,46 @@
+package webreduce.extraction;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of cell values, so the relations extracted by one extraction
+ * algorithm share a single instance of values that repeat across tables and
+ * pages, like common header names, units or navigation labels. The least
+ * recently used values are evicted. Not thread safe, every extraction
+ * algorithm keeps its own cache.
+ */
+public class CellValueCache {
+	public static final int DEFAULT_CAPACITY = 4096;
+	// longer values rarely repeat, they are not cached
+	public static final int MAX_LENGTH = 32;
+
+	private final LinkedHashMap<String, String> values;
+
+	public CellValueCache(final int capacity) {
+		this.values = new LinkedHashMap<String, String>(capacity / 4, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached instance equal to the value, or the value itself
+	 */
+	public String get(String value) {
+		if (value.isEmpty())
+			return "";
+		if (value.length() > MAX_LENGTH)
+			return value;
+		String cached = values.get(value);
+		if (cached != null)
+			return cached;
+		values.put(value, value);
+		return value;
+	}
+}
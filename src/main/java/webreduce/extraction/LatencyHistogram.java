@@ -0,0 +1,91 @@
+package webreduce.extraction;
+
+/**
+ * Histogram of durations in nanoseconds with logarithmic buckets, each power
+ * of two is split into 16 buckets, so percentiles are within about 3% of the
+ * recorded values. Not thread-safe, every thread records into its own
+ * histograms, which are merged afterwards.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	// enough buckets for all positive longs
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count = 0;
+	private long sum = 0;
+	private long max = 0;
+
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts[bucket(nanos)]++;
+		count++;
+		sum += nanos;
+		if (nanos > max)
+			max = nanos;
+	}
+
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] += other.counts[i];
+		count += other.count;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return sum of all recorded durations in nanoseconds
+	 */
+	public long getTotal() {
+		return sum;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * @param quantile
+	 *            between 0 and 1, e.g. 0.99
+	 * @return the duration in nanoseconds below which the given share of the
+	 *         recorded durations lie, 0 if nothing was recorded
+	 */
+	public long getPercentile(double quantile) {
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(quantile * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				// middle of the bucket, but never above the largest value
+				long lower = lowerBound(i);
+				long upper = i + 1 < BUCKETS ? lowerBound(i + 1) : Long.MAX_VALUE;
+				return Math.min(max, lower + (upper - lower) / 2);
+			}
+		}
+		return max;
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long lowerBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+	}
+}
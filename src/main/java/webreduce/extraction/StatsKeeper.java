@@ -2,6 +2,9 @@ package webreduce.extraction;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /* Abstract interface for collecting stats during the extraction process. 
  * Used to be implemented with Hadoop Counters, current implementation just uses
@@ -9,21 +12,53 @@ import java.util.Map;
  */
 public abstract class StatsKeeper {
 
+	/**
+	 * The stages of the extraction of a WARC file whose durations are
+	 * recorded with recordTime.
+	 */
+	public static enum STAGES {
+		// opening the WARC file, until the first byte can be read
+		FETCH,
+		// reading and inflating a record
+		WARC_DECODE,
+		// decoding and parsing a page
+		PARSE,
+		// converting a table into a grid and summarizing its cells
+		TABLE_CONVERT,
+		// computing the features of the tables of a page
+		FEATURES,
+		// running the models on the features of the tables of a page
+		CLASSIFY,
+		// extracting the terms of a page
+		TERMS,
+		// encoding a dataset as JSON
+		SERIALIZE,
+		// compressing the JSON of a dataset, or waiting for the compression
+		// threads
+		COMPRESS,
+		// writing compressed results to S3 or a local file
+		UPLOAD
+	}
+
 	public abstract void incCounter(Enum<?> counter);
-	public abstract Map<String,Integer> statsAsMap();
+	public abstract Map<String,Long> statsAsMap();
 	public abstract void reportProgress();
+	// one duration of the given stage, usually one of STAGES
+	public abstract void recordTime(Enum<?> stage, long nanos);
+	public abstract Map<String, LatencyHistogram> timesAsMap();
 	
 	public static class HashMapStats extends StatsKeeper {
-		protected HashMap<String, Integer> counters = new HashMap<String, Integer>();
+		protected HashMap<String, Long> counters = new HashMap<String, Long>();
+		protected HashMap<String, LatencyHistogram> times = new HashMap<String, LatencyHistogram>();
 
 		@Override
 		public void incCounter(Enum<?> counter) {
 			if(counters.containsKey(counter.name())) {
-				int co = (Integer) counters.get(counter.name()).intValue();
-				counters.put(counter.name(), Integer.valueOf(++co));
+				long co = counters.get(counter.name()).longValue();
+				counters.put(counter.name(), Long.valueOf(++co));
 			}
 			else {
-				counters.put(counter.name(), 1);
+				counters.put(counter.name(), 1L);
 			}
 		}
 
@@ -31,17 +66,253 @@ public abstract class StatsKeeper {
 		public void reportProgress() {
 		}
 
-		public Map<String, Integer> statsAsMap() {
+		public Map<String, Long> statsAsMap() {
 			return counters;
 	    }
 
-		public void addMap(HashMap<String, Integer> addmap) {
-			for (Map.Entry<String, Integer> e : addmap.entrySet())
+		@Override
+		public void recordTime(Enum<?> stage, long nanos) {
+			LatencyHistogram histogram = times.get(stage.name());
+			if (histogram == null) {
+				histogram = new LatencyHistogram();
+				times.put(stage.name(), histogram);
+			}
+			histogram.record(nanos);
+		}
+
+		@Override
+		public Map<String, LatencyHistogram> timesAsMap() {
+			return times;
+		}
+
+		public void addMap(Map<String, Long> addmap) {
+			for (Map.Entry<String, Long> e : addmap.entrySet())
 				if (this.counters.containsKey(e.getKey()))
 					this.counters.put(e.getKey(), e.getValue() + this.counters.get(e.getKey()));
 				else
 					this.counters.put(e.getKey(), e.getValue());
 	    }
+
+		public void addTimes(Map<String, LatencyHistogram> addmap) {
+			for (Map.Entry<String, LatencyHistogram> e : addmap.entrySet()) {
+				LatencyHistogram histogram = this.times.get(e.getKey());
+				if (histogram == null) {
+					histogram = new LatencyHistogram();
+					this.times.put(e.getKey(), histogram);
+				}
+				histogram.add(e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Thread-safe StatsKeeper that counts without locks. Every enum class
+	 * gets an array of atomic longs with one slot per constant, so counting
+	 * is a lookup of the class and an atomic increment, without boxing.
+	 * Durations go into one histogram per constant, which is locked while it
+	 * is recorded into or copied. Instances of several threads or files are
+	 * rolled up with {@link #add(EnumStats)}.
+	 */
+	public static class EnumStats extends StatsKeeper {
+		private final ConcurrentHashMap<Class<?>, AtomicLongArray> counters = new ConcurrentHashMap<Class<?>, AtomicLongArray>();
+		private final ConcurrentHashMap<Class<?>, AtomicReferenceArray<LatencyHistogram>> times = new ConcurrentHashMap<Class<?>, AtomicReferenceArray<LatencyHistogram>>();
+		// counters and durations that were added by name, see addMap and
+		// addTimes, guarded by itself
+		private final HashMapStats named = new HashMapStats();
+
+		@Override
+		public void incCounter(Enum<?> counter) {
+			slots(counter.getDeclaringClass()).incrementAndGet(
+					counter.ordinal());
+		}
+
+		public void addCount(Enum<?> counter, long count) {
+			slots(counter.getDeclaringClass()).addAndGet(counter.ordinal(),
+					count);
+		}
+
+		public long getCount(Enum<?> counter) {
+			AtomicLongArray slots = counters.get(counter.getDeclaringClass());
+			return slots == null ? 0 : slots.get(counter.ordinal());
+		}
+
+		@Override
+		public void reportProgress() {
+		}
+
+		/**
+		 * @return a copy of the counters that were incremented, summed up by
+		 *         the names of the constants
+		 */
+		@Override
+		public Map<String, Long> statsAsMap() {
+			Map<String, Long> map = new HashMap<String, Long>();
+			for (Map.Entry<Class<?>, AtomicLongArray> e : counters.entrySet()) {
+				Object[] constants = e.getKey().getEnumConstants();
+				AtomicLongArray slots = e.getValue();
+				for (int i = 0; i < slots.length(); i++) {
+					long count = slots.get(i);
+					if (count == 0)
+						continue;
+					String name = ((Enum<?>) constants[i]).name();
+					Long before = map.get(name);
+					map.put(name, before == null ? count : before + count);
+				}
+			}
+			synchronized (named) {
+				for (Map.Entry<String, Long> e : named.counters.entrySet()) {
+					Long before = map.get(e.getKey());
+					map.put(e.getKey(), before == null ? e.getValue() : before
+							+ e.getValue());
+				}
+			}
+			return map;
+		}
+
+		@Override
+		public void recordTime(Enum<?> stage, long nanos) {
+			LatencyHistogram histogram = histogram(stage.getDeclaringClass(),
+					stage.ordinal());
+			synchronized (histogram) {
+				histogram.record(nanos);
+			}
+		}
+
+		/**
+		 * @return copies of the histograms, merged by the names of the stages
+		 */
+		@Override
+		public Map<String, LatencyHistogram> timesAsMap() {
+			HashMapStats copy = new HashMapStats();
+			for (Map.Entry<Class<?>, AtomicReferenceArray<LatencyHistogram>> e : times
+					.entrySet()) {
+				Object[] constants = e.getKey().getEnumConstants();
+				AtomicReferenceArray<LatencyHistogram> histograms = e
+						.getValue();
+				for (int i = 0; i < histograms.length(); i++) {
+					LatencyHistogram histogram = histograms.get(i);
+					if (histogram != null)
+						addTime(copy, ((Enum<?>) constants[i]).name(),
+								histogram);
+				}
+			}
+			synchronized (named) {
+				copy.addTimes(named.times);
+			}
+			return copy.times;
+		}
+
+		/**
+		 * Adds the counters and durations of another instance to this one.
+		 */
+		public void add(EnumStats other) {
+			for (Map.Entry<Class<?>, AtomicLongArray> e : other.counters
+					.entrySet()) {
+				AtomicLongArray from = e.getValue();
+				AtomicLongArray to = slots(e.getKey());
+				for (int i = 0; i < from.length(); i++) {
+					long count = from.get(i);
+					if (count != 0)
+						to.addAndGet(i, count);
+				}
+			}
+			for (Map.Entry<Class<?>, AtomicReferenceArray<LatencyHistogram>> e : other.times
+					.entrySet()) {
+				AtomicReferenceArray<LatencyHistogram> from = e.getValue();
+				for (int i = 0; i < from.length(); i++) {
+					LatencyHistogram histogram = from.get(i);
+					if (histogram == null)
+						continue;
+					LatencyHistogram to = histogram(e.getKey(), i);
+					LatencyHistogram copy = new LatencyHistogram();
+					synchronized (histogram) {
+						copy.add(histogram);
+					}
+					synchronized (to) {
+						to.add(copy);
+					}
+				}
+			}
+			HashMapStats otherNamed = new HashMapStats();
+			synchronized (other.named) {
+				otherNamed.addMap(other.named.counters);
+				otherNamed.addTimes(other.named.times);
+			}
+			addMap(otherNamed.counters);
+			addTimes(otherNamed.times);
+		}
+
+		/**
+		 * @return a copy of the current counters and durations
+		 */
+		public EnumStats snapshot() {
+			EnumStats copy = new EnumStats();
+			copy.add(this);
+			return copy;
+		}
+
+		/**
+		 * Adds counters of another StatsKeeper by name.
+		 */
+		public void addMap(Map<String, Long> addmap) {
+			if (addmap.isEmpty())
+				return;
+			synchronized (named) {
+				named.addMap(addmap);
+			}
+		}
+
+		/**
+		 * Adds durations of another StatsKeeper by name.
+		 */
+		public void addTimes(Map<String, LatencyHistogram> addmap) {
+			if (addmap.isEmpty())
+				return;
+			synchronized (named) {
+				named.addTimes(addmap);
+			}
+		}
+
+		private AtomicLongArray slots(Class<?> type) {
+			AtomicLongArray slots = counters.get(type);
+			if (slots == null) {
+				slots = new AtomicLongArray(type.getEnumConstants().length);
+				AtomicLongArray existing = counters.putIfAbsent(type, slots);
+				if (existing != null)
+					slots = existing;
+			}
+			return slots;
+		}
+
+		private LatencyHistogram histogram(Class<?> type, int ordinal) {
+			AtomicReferenceArray<LatencyHistogram> histograms = times.get(type);
+			if (histograms == null) {
+				histograms = new AtomicReferenceArray<LatencyHistogram>(
+						type.getEnumConstants().length);
+				AtomicReferenceArray<LatencyHistogram> existing = times
+						.putIfAbsent(type, histograms);
+				if (existing != null)
+					histograms = existing;
+			}
+			LatencyHistogram histogram = histograms.get(ordinal);
+			if (histogram == null) {
+				histograms.compareAndSet(ordinal, null, new LatencyHistogram());
+				histogram = histograms.get(ordinal);
+			}
+			return histogram;
+		}
+
+		private static void addTime(HashMapStats to, String name,
+				LatencyHistogram histogram) {
+			LatencyHistogram copy = to.times.get(name);
+			if (copy == null) {
+				copy = new LatencyHistogram();
+				to.times.put(name, copy);
+			}
+			synchronized (histogram) {
+				copy.add(histogram);
+			}
+		}
 	}
 
 	public static class NullStats extends StatsKeeper {
@@ -55,7 +326,16 @@ public abstract class StatsKeeper {
 		}
 
 		@Override
-		public Map<String, Integer> statsAsMap() {
+		public Map<String, Long> statsAsMap() {
+			return null;
+		}
+
+		@Override
+		public void recordTime(Enum<?> stage, long nanos) {
+		}
+
+		@Override
+		public Map<String, LatencyHistogram> timesAsMap() {
 			return null;
 		}
 
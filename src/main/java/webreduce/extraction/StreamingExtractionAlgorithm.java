@@ -0,0 +1,17 @@
+package webreduce.extraction;
+
+import java.io.IOException;
+import java.util.List;
+
+import webreduce.data.Dataset;
+
+/**
+ * An extraction algorithm that works on the decoded page source, so the
+ * caller does not need to parse the whole page into a document first.
+ */
+public interface StreamingExtractionAlgorithm extends ExtractionAlgorithm {
+
+	public abstract List<Dataset> extract(String html,
+			DocumentMetadata metadata) throws IOException, InterruptedException;
+
+}
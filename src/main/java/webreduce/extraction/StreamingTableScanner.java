@@ -0,0 +1,451 @@
+package webreduce.extraction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.Tag;
+
+/**
+ * Finds the tables of an HTML page with a single pass over its source, without
+ * building a document tree. Only tags are tokenized; text is kept for the page
+ * title and, if requested, for the body text. For each table the scanner
+ * records the region of the source it spans, whether it is inside a form and
+ * whether it contains other tables, so leaf tables can be parsed on their own.
+ * <p>
+ * Table nesting and form scope follow the rules of the Jsoup tree builder for
+ * the common cases: a table opened outside of a cell or caption of the
+ * enclosing table closes that table, closing a cell closes the forms opened in
+ * it, and a form tag is ignored while another form is open. Forms are assumed
+ * to be closed by their end tag, even if elements opened in them are not.
+ * Text order may differ from the tree order where the tree builder moves
+ * nodes, e.g. text inside tables but outside of cells.
+ */
+public class StreamingTableScanner {
+
+	/**
+	 * A table of the page, in the order of its start tag.
+	 */
+	public static class TableRegion {
+		private final int start;
+		private int end;
+		private final boolean insideForm;
+		private boolean leaf = true;
+		// tag name of the open cell or caption, null if there is none
+		private String cell = null;
+		private int formsInCell = 0;
+
+		TableRegion(int start, boolean insideForm) {
+			this.start = start;
+			this.insideForm = insideForm;
+		}
+
+		/** offset of the table's start tag */
+		public int getStart() {
+			return start;
+		}
+
+		/** offset after the table's end tag, or where it is closed implicitly */
+		public int getEnd() {
+			return end;
+		}
+
+		/** true if the table is opened inside a form */
+		public boolean isInsideForm() {
+			return insideForm;
+		}
+
+		/** true if the table contains no other table */
+		public boolean isLeaf() {
+			return leaf;
+		}
+	}
+
+	/**
+	 * The tables, title and body text of a page.
+	 */
+	public static class Page {
+		private final List<TableRegion> tables = new ArrayList<TableRegion>();
+		private String title = null;
+		private final StringBuilder text;
+
+		Page(boolean collectText) {
+			this.text = collectText ? new StringBuilder() : null;
+		}
+
+		public List<TableRegion> getTables() {
+			return tables;
+		}
+
+		/** same as doc.title() */
+		public String getTitle() {
+			return title == null ? "" : title;
+		}
+
+		/**
+		 * text of the page outside of title, script and style elements, with
+		 * whitespace normalized like doc.body().text(). Null if text was not
+		 * collected.
+		 */
+		public String getText() {
+			return text == null ? null : text.toString().trim();
+		}
+	}
+
+	// elements whose content is not tokenized
+	private static final String[] RAW_TEXT_TAGS = { "script", "style",
+			"title", "textarea", "xmp", "iframe", "noembed", "noframes" };
+	// raw text elements whose content is not part of the body text, unless
+	// a title is in the body
+	private static final String[] DATA_TAGS = { "script", "style", "title" };
+	// raw text elements whose content may contain entities
+	private static final String[] RCDATA_TAGS = { "title", "textarea" };
+	// start tags that open a cell of the innermost table, a table in a
+	// caption is nested like one in a cell
+	private static final String[] CELL_TAGS = { "td", "th", "caption" };
+	// start tags that close an open cell of the innermost table
+	private static final String[] CELL_CLOSING_START_TAGS = { "col",
+			"colgroup", "tbody", "tfoot", "thead", "tr" };
+	// end tags that close an open td or th
+	private static final String[] CELL_CLOSING_END_TAGS = { "td", "th",
+			"tbody", "tfoot", "thead", "tr" };
+	// start tags that do not start the body
+	private static final String[] HEAD_TAGS = { "html", "head", "title", "meta",
+			"link", "base", "script", "style", "noscript", "basefont",
+			"bgsound", "command" };
+
+	private final String html;
+	private final int length;
+	private final Page page;
+	// tables enclosing the current position, innermost last
+	private final List<TableRegion> open = new ArrayList<TableRegion>();
+	// forms opened outside of any table
+	private int openForms = 0;
+	// a form tag is ignored while the tree builder's form pointer is set
+	private boolean formPointer = false;
+	// a title in the body is part of the body text
+	private boolean inBody = false;
+	private int pos = 0;
+
+	private StreamingTableScanner(String html, boolean collectText) {
+		this.html = html;
+		this.length = html.length();
+		this.page = new Page(collectText);
+	}
+
+	/**
+	 * @param collectText
+	 *            whether to collect the body text
+	 * @return the tables of the page in the order of
+	 *         doc.getElementsByTag("table")
+	 */
+	public static Page scan(String html, boolean collectText) {
+		StreamingTableScanner scanner = new StreamingTableScanner(html,
+				collectText);
+		scanner.run();
+		return scanner.page;
+	}
+
+	private void run() {
+		int textStart = 0;
+		while (pos < length) {
+			int lt = html.indexOf('<', pos);
+			if (lt < 0 || lt + 1 >= length)
+				break;
+			char c = html.charAt(lt + 1);
+			if (isLetter(c)) {
+				appendText(textStart, lt);
+				pos = lt + 1;
+				String name = readTagName();
+				boolean selfClosing = skipAttributes();
+				startTag(name, lt);
+				if (!selfClosing && isOneOf(name, RAW_TEXT_TAGS))
+					readRawText(name);
+				else if (name.equals("plaintext")) {
+					appendText(pos, length, false);
+					pos = length;
+				}
+				textStart = pos;
+			} else if (c == '/' && lt + 2 < length) {
+				appendText(textStart, lt);
+				if (isLetter(html.charAt(lt + 2))) {
+					pos = lt + 2;
+					String name = readTagName();
+					skipAttributes();
+					endTag(name);
+				} else if (html.charAt(lt + 2) == '>') {
+					pos = lt + 3;
+				} else {
+					skipBogusComment(lt + 2);
+				}
+				textStart = pos;
+			} else if (c == '!') {
+				appendText(textStart, lt);
+				if (html.startsWith("<!--", lt))
+					skipComment(lt + 4);
+				else
+					skipBogusComment(lt + 2);
+				textStart = pos;
+			} else if (c == '?') {
+				appendText(textStart, lt);
+				skipBogusComment(lt + 1);
+				textStart = pos;
+			} else {
+				// a lone '<' is text
+				pos = lt + 1;
+			}
+		}
+		appendText(textStart, length);
+		while (!open.isEmpty())
+			closeTable(length);
+	}
+
+	private void startTag(String name, int tagStart) {
+		if (!inBody && !isOneOf(name, HEAD_TAGS))
+			inBody = true;
+		if (page.text != null && (name.equals("br") || isBlock(name))
+				&& page.text.length() > 0 && !endsWithWhitespace(page.text))
+			page.text.append(' ');
+
+		TableRegion table = open.isEmpty() ? null : open.get(open.size() - 1);
+		if (name.equals("table")) {
+			if (table != null && table.cell == null) {
+				// not inside a cell, the new table is a sibling
+				closeTable(tagStart);
+				table = open.isEmpty() ? null : open.get(open.size() - 1);
+			}
+			if (table != null)
+				for (TableRegion outer : open)
+					outer.leaf = false;
+			boolean insideForm = openForms > 0;
+			for (TableRegion outer : open)
+				insideForm |= outer.formsInCell > 0;
+			TableRegion region = new TableRegion(tagStart, insideForm);
+			page.tables.add(region);
+			open.add(region);
+		} else if (name.equals("form")) {
+			if (formPointer)
+				return;
+			formPointer = true;
+			// a form between the cells of a table is left empty
+			if (table == null)
+				openForms++;
+			else if (table.cell != null)
+				table.formsInCell++;
+		} else if (table != null) {
+			if (isOneOf(name, CELL_TAGS)) {
+				closeCell(table);
+				table.cell = name;
+			} else if (isOneOf(name, CELL_CLOSING_START_TAGS)) {
+				closeCell(table);
+			}
+		}
+	}
+
+	private void endTag(String name) {
+		TableRegion table = open.isEmpty() ? null : open.get(open.size() - 1);
+		if (name.equals("table")) {
+			if (table != null)
+				closeTable(pos);
+		} else if (name.equals("form")) {
+			if (!formPointer)
+				return;
+			formPointer = false;
+			// forms are only closed within the same cell
+			if (table == null) {
+				if (openForms > 0)
+					openForms--;
+			} else if (table.cell != null && table.formsInCell > 0) {
+				table.formsInCell--;
+			}
+		} else if (table != null
+				&& (name.equals(table.cell) || !"caption".equals(table.cell)
+						&& isOneOf(name, CELL_CLOSING_END_TAGS))) {
+			closeCell(table);
+		} else if (page.text != null && name.equals("br")
+				&& page.text.length() > 0 && !endsWithWhitespace(page.text)) {
+			// an end tag br is a br
+			page.text.append(' ');
+		}
+	}
+
+	private void closeCell(TableRegion table) {
+		table.cell = null;
+		table.formsInCell = 0;
+	}
+
+	private void closeTable(int end) {
+		TableRegion table = open.remove(open.size() - 1);
+		table.end = end;
+	}
+
+	// reads a tag name at pos, lower case
+	private String readTagName() {
+		int start = pos;
+		while (pos < length) {
+			char c = html.charAt(pos);
+			if (isWhitespace(c) || c == '/' || c == '>')
+				break;
+			pos++;
+		}
+		return html.substring(start, pos).toLowerCase();
+	}
+
+	// skips the attributes and the end of a tag, returns true for "/>"
+	private boolean skipAttributes() {
+		boolean selfClosing = false;
+		while (pos < length) {
+			char c = html.charAt(pos);
+			if (c == '>') {
+				pos++;
+				return selfClosing;
+			}
+			if (c == '/' || isWhitespace(c)) {
+				selfClosing = c == '/';
+				pos++;
+				continue;
+			}
+			selfClosing = false;
+			// attribute name
+			while (pos < length) {
+				c = html.charAt(pos);
+				if (isWhitespace(c) || c == '/' || c == '>' || c == '=')
+					break;
+				pos++;
+			}
+			while (pos < length && isWhitespace(html.charAt(pos)))
+				pos++;
+			if (pos < length && html.charAt(pos) == '=') {
+				pos++;
+				while (pos < length && isWhitespace(html.charAt(pos)))
+					pos++;
+				if (pos < length
+						&& (html.charAt(pos) == '"' || html.charAt(pos) == '\'')) {
+					int close = html.indexOf(html.charAt(pos), pos + 1);
+					pos = close < 0 ? length : close + 1;
+				} else {
+					while (pos < length && !isWhitespace(html.charAt(pos))
+							&& html.charAt(pos) != '>')
+						pos++;
+				}
+			}
+		}
+		return false;
+	}
+
+	// skips to the end tag of a raw text element
+	private void readRawText(String name) {
+		int start = pos;
+		int end = length;
+		int from = pos;
+		while (true) {
+			int close = html.indexOf("</", from);
+			if (close < 0)
+				break;
+			int nameEnd = close + 2 + name.length();
+			if (html.regionMatches(true, close + 2, name, 0, name.length())
+					&& (nameEnd >= length || isWhitespace(html.charAt(nameEnd))
+							|| html.charAt(nameEnd) == '/' || html
+							.charAt(nameEnd) == '>')) {
+				end = close;
+				break;
+			}
+			from = close + 2;
+		}
+		if (name.equals("title")) {
+			if (page.title == null)
+				page.title = normalizeWhitespace(
+						Parser.unescapeEntities(html.substring(start, end),
+								false)).trim();
+			if (inBody)
+				appendText(start, end, true);
+		} else if (!isOneOf(name, DATA_TAGS)) {
+			appendText(start, end, isOneOf(name, RCDATA_TAGS));
+		}
+		pos = end;
+		if (end < length) {
+			pos = end + 2;
+			readTagName();
+			skipAttributes();
+			endTag(name);
+		}
+	}
+
+	private void skipComment(int from) {
+		if (html.startsWith(">", from)) {
+			pos = from + 1;
+		} else if (html.startsWith("->", from)) {
+			pos = from + 2;
+		} else {
+			int end = html.indexOf("-->", from);
+			pos = end < 0 ? length : end + 3;
+		}
+	}
+
+	private void skipBogusComment(int from) {
+		int end = html.indexOf('>', from);
+		pos = end < 0 ? length : end + 1;
+	}
+
+	private void appendText(int start, int end) {
+		appendText(start, end, true);
+	}
+
+	// appends source text to the body text, whitespace normalized
+	private void appendText(int start, int end, boolean decodeEntities) {
+		if (page.text == null || start >= end)
+			return;
+		String text = html.substring(start, end);
+		if (decodeEntities && text.indexOf('&') >= 0)
+			text = Parser.unescapeEntities(text, false);
+		text = normalizeWhitespace(text);
+		if (!inBody && !text.equals(" "))
+			inBody = true;
+		if (text.length() > 0 && text.charAt(0) == ' '
+				&& (page.text.length() == 0 || endsWithWhitespace(page.text)))
+			text = text.substring(1);
+		page.text.append(text);
+	}
+
+	// collapses runs of whitespace to a single space, like TextNode does
+	private static String normalizeWhitespace(String text) {
+		StringBuilder sb = new StringBuilder(text.length());
+		boolean lastWasWhite = false;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (isWhitespace(c)) {
+				if (!lastWasWhite)
+					sb.append(' ');
+				lastWasWhite = true;
+			} else {
+				sb.append(c);
+				lastWasWhite = false;
+			}
+		}
+		return sb.toString();
+	}
+
+	// unknown tags are inline, Tag.valueOf would create a new tag for them
+	private static boolean isBlock(String name) {
+		return Tag.isKnownTag(name) && Tag.valueOf(name).isBlock();
+	}
+
+	private static boolean endsWithWhitespace(StringBuilder sb) {
+		return sb.length() > 0 && sb.charAt(sb.length() - 1) == ' ';
+	}
+
+	private static boolean isOneOf(String name, String[] names) {
+		for (String n : names)
+			if (n.equals(name))
+				return true;
+		return false;
+	}
+
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r';
+	}
+}
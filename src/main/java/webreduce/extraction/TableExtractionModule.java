@@ -7,8 +7,9 @@ import java.util.Properties;
 
 import org.fuberlin.wbsg.ccrdf.ProcessingNode;
 
-import webreduce.extraction.StatsKeeper.HashMapStats;
+import webreduce.extraction.StatsKeeper.EnumStats;
 import webreduce.extraction.basic.BasicExtractionAlgorithm;
+import webreduce.extraction.basic.StreamingBasicExtractionAlgorithm;
 import webreduce.extraction.mh.MHExtractionAlgorithm;
 
 import com.google.inject.AbstractModule;
@@ -25,6 +26,7 @@ public class TableExtractionModule extends AbstractModule {
 		defaults.setProperty("extractionAlgorithm", "mh");
 		defaults.setProperty("phase1ModelPath", "/SimpleCart_P1.mdl");
 		defaults.setProperty("phase2ModelPath", "/RandomForest_P2.mdl");
+		defaults.setProperty("streaming", "false");
 
 		properties = new Properties(defaults);
 		try {
@@ -40,12 +42,17 @@ public class TableExtractionModule extends AbstractModule {
 		}
 
 		// class bindings
-		bind(StatsKeeper.class).to(HashMapStats.class);
+		bind(StatsKeeper.class).to(EnumStats.class);
 		
 		String algorithmName = properties.getProperty("extractionAlgorithm");
+		boolean streaming = Boolean.parseBoolean(properties
+				.getProperty("streaming"));
 		if (algorithmName.equals("mh")
 				|| algorithmName.equals("MHExtractionAlgorithm"))
 			bind(ExtractionAlgorithm.class).to(MHExtractionAlgorithm.class);
+		else if (streaming)
+			bind(ExtractionAlgorithm.class).to(
+					StreamingBasicExtractionAlgorithm.class);
 		else
 			bind(ExtractionAlgorithm.class).to(BasicExtractionAlgorithm.class);
 	}
@@ -0,0 +1,151 @@
+package webreduce.extraction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.select.Elements;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+
+/**
+ * Collects all tables of a document with a single traversal, instead of
+ * running several selector queries on the subtree of every table. For each
+ * table it records whether it is inside a form and whether it contains other
+ * tables. For tables without nested tables it also records their rows, the
+ * cells of each row, header cells, spanning cells and captions, in the same
+ * order as the equivalent queries would return them.
+ */
+public class TableScanner implements NodeVisitor {
+
+	/**
+	 * A table of the document. Rows, cells, header cells, spans and captions
+	 * are only complete for leaf tables.
+	 */
+	public static class ScannedTable {
+		private final Element table;
+		private final boolean insideForm;
+		private boolean leaf = true;
+		private final Elements rows = new Elements();
+		private final List<Elements> cells = new ArrayList<Elements>();
+		private int headerCells = 0;
+		private boolean spanning = false;
+		private final Elements captions = new Elements();
+		// rows of this table that are not closed yet
+		private final List<Integer> openRows = new ArrayList<Integer>(1);
+
+		ScannedTable(Element table, boolean insideForm) {
+			this.table = table;
+			this.insideForm = insideForm;
+		}
+
+		public Element getTable() {
+			return table;
+		}
+
+		/** true if one of the table's ancestors is a form */
+		public boolean isInsideForm() {
+			return insideForm;
+		}
+
+		/** true if the table contains no other table */
+		public boolean isLeaf() {
+			return leaf;
+		}
+
+		/** same as table.getElementsByTag("tr") */
+		public Elements getRows() {
+			return rows;
+		}
+
+		/** same as getRows().get(row).select("td, th") */
+		public Elements getCells(int row) {
+			return cells.get(row);
+		}
+
+		/** same as table.select("th").size() */
+		public int getHeaderCellCount() {
+			return headerCells;
+		}
+
+		/**
+		 * same as testing table.select("td[colspan], th[colspan]") and
+		 * table.select("td[rowspan], th[rowspan]") for results
+		 */
+		public boolean hasSpanningCells() {
+			return spanning;
+		}
+
+		/** same as table.select("caption") */
+		public Elements getCaptions() {
+			return captions;
+		}
+	}
+
+	private final List<ScannedTable> tables = new ArrayList<ScannedTable>();
+	// tables enclosing the current node, innermost last
+	private final List<ScannedTable> open = new ArrayList<ScannedTable>();
+	private int openForms = 0;
+
+	/**
+	 * @return all tables of the document in document order, the order of
+	 *         doc.getElementsByTag("table")
+	 */
+	public static List<ScannedTable> scan(Document doc) {
+		TableScanner scanner = new TableScanner();
+		new NodeTraversor(scanner).traverse(doc);
+		return scanner.tables;
+	}
+
+	@Override
+	public void head(Node node, int depth) {
+		if (!(node instanceof Element))
+			return;
+		Element element = (Element) node;
+		String tag = element.tagName();
+		if (tag.equals("form")) {
+			openForms++;
+		} else if (tag.equals("table")) {
+			// the enclosing tables are not leaves, so only the innermost
+			// table needs to collect rows and cells
+			for (ScannedTable outer : open)
+				outer.leaf = false;
+			ScannedTable table = new ScannedTable(element, openForms > 0);
+			tables.add(table);
+			open.add(table);
+		} else if (!open.isEmpty()) {
+			ScannedTable table = open.get(open.size() - 1);
+			if (tag.equals("tr")) {
+				table.openRows.add(table.rows.size());
+				table.rows.add(element);
+				table.cells.add(new Elements());
+			} else if (tag.equals("td") || tag.equals("th")) {
+				for (int row : table.openRows)
+					table.cells.get(row).add(element);
+				if (tag.equals("th"))
+					table.headerCells++;
+				if (element.hasAttr("colspan") || element.hasAttr("rowspan"))
+					table.spanning = true;
+			} else if (tag.equals("caption")) {
+				table.captions.add(element);
+			}
+		}
+	}
+
+	@Override
+	public void tail(Node node, int depth) {
+		if (!(node instanceof Element))
+			return;
+		String tag = ((Element) node).tagName();
+		if (tag.equals("form")) {
+			openForms--;
+		} else if (tag.equals("table")) {
+			open.remove(open.size() - 1);
+		} else if (tag.equals("tr") && !open.isEmpty()) {
+			List<Integer> openRows = open.get(open.size() - 1).openRows;
+			openRows.remove(openRows.size() - 1);
+		}
+	}
+}
@@ -9,7 +9,6 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
-import org.apache.commons.lang3.StringEscapeUtils;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
@@ -18,9 +17,13 @@ import org.jsoup.select.Elements;
 
 import webreduce.data.Dataset;
 import webreduce.data.HeaderPosition;
+import webreduce.extraction.CellValueCache;
 import webreduce.extraction.DocumentMetadata;
 import webreduce.extraction.ExtractionAlgorithm;
 import webreduce.extraction.StatsKeeper;
+import webreduce.extraction.TableScanner;
+import webreduce.extraction.TableScanner.ScannedTable;
+import webreduce.extraction.mh.tools.CellTools;
 import webreduce.terms.LuceneNormalizer;
 
 import com.google.common.base.CharMatcher;
@@ -61,6 +64,9 @@ public class BasicExtractionAlgorithm implements ExtractionAlgorithm {
 	protected boolean save_reference;
 
 	protected LuceneNormalizer termExtractor;
+	// repeated cell values of the relations share one instance
+	protected final CellValueCache cellValues = new CellValueCache(
+			CellValueCache.DEFAULT_CAPACITY);
 
 	public static enum TABLE_COUNTERS {
 		TABLES_FOUND, TABLES_INSIDE_FORMS, NON_LEAF_TABLES, SMALL_TABLES, RELATIONS_FOUND, SPARSE_TABLE, LINK_TABLE, CALENDAR_FOUND, NON_REGULAR_TABLES, LANGDETECT_EXCEPTION, ENGLISH, NON_ENGLISH, TO_MANY_BADWORDS, SPANNING_TD, NO_HEADERS, MORE_THAN_ONE_HEADER, SHORT_ATTRIBUTE_NAMES, LONG_ATTRIBUTE_NAMES,
@@ -85,99 +91,31 @@ public class BasicExtractionAlgorithm implements ExtractionAlgorithm {
 		// Get page content and parse with JSoup
 		String[] tags = null;
 		int count = -1;
+		String pageTitle = null;
 		// iterate tables tags; find relations
-		main_loop: for (Element table : doc.getElementsByTag("table")) {
+		for (ScannedTable scanned : TableScanner.scan(doc)) {
 			// boolean isFiltered = false;
 			stats.reportProgress();
 			count += 1;
 			stats.incCounter(TABLE_COUNTERS.TABLES_FOUND);
 
 			// remove tables inside forms
-			for (Element p : table.parents()) {
-				if (p.tagName().equals("form")) {
-					stats.incCounter(TABLE_COUNTERS.TABLES_INSIDE_FORMS);
-					continue main_loop;
-				}
+			if (scanned.isInsideForm()) {
+				stats.incCounter(TABLE_COUNTERS.TABLES_INSIDE_FORMS);
+				continue;
 			}
 
 			// remove table with sub-tables
-			Elements subTables = table.getElementsByTag("table");
-			subTables.remove(table);
-			if (subTables.size() > 0) {
+			if (!scanned.isLeaf()) {
 				stats.incCounter(TABLE_COUNTERS.NON_LEAF_TABLES);
 				continue;
 			}
 
-			// remove tables with less than N rows
-			Elements trs = table.getElementsByTag("tr");
-			if (trs.size() < TABLE_MIN_ROWS) {
-				stats.incCounter(TABLE_COUNTERS.SMALL_TABLES);
-				continue;
-			}
-			// remove tables with less than M columns
-			int maxtdCount = 0;
-			int[] tdCounts = new int[trs.size()];
-			Multiset<Integer> colCounts = HashMultiset.create();
-			for (int tr_idx = 0; tr_idx < trs.size(); tr_idx++) {
-				Elements tds = trs.get(tr_idx).select("td, th");
-				int td_size = tds.size();
-				tdCounts[tr_idx] = td_size;
-				colCounts.add(td_size);
-				if (td_size > maxtdCount)
-					maxtdCount = td_size;
-			}
-			// find most common number of columns throughout all rows
-			colCounts = Multisets.copyHighestCountFirst(colCounts);
-				int mostFrequentColCount = colCounts.entrySet().iterator().next()
-						.getElement();
-			if (mostFrequentColCount < TABLE_MIN_COLS) {
-				stats.incCounter(TABLE_COUNTERS.SMALL_TABLES);
-				continue;
-			}
-			// remove non-regular tables (there is a row with more columns
-			// than the most common number)
-			if (maxtdCount != mostFrequentColCount) {
-				stats.incCounter(TABLE_COUNTERS.NON_REGULAR_TABLES);
-				continue;
-			}
-
-			// eliminate tables with "rowspan" or "colspan" for now
-			Elements colSpans = table.select("td[colspan], th[colspan]");
-			Elements rowSpans = table.select("td[rowspan], th[rowspan]");
-			if (colSpans.size() > 0 || rowSpans.size() > 0) {
-				stats.incCounter(TABLE_COUNTERS.SPANNING_TD);
-				continue;
-			}
-
-			// there should be header cells
-			Boolean has_header = true;
-			Elements headerCells = table.select("th");
-			if (headerCells.size() == 0) {
-				stats.incCounter(TABLE_COUNTERS.NO_HEADERS);
-				has_header = false;
-			}
-			// stats.reportProgress();
-			Optional<Dataset> r = doExtract(table, trs, mostFrequentColCount);
+			Optional<Dataset> r = extractTable(scanned);
 			if (!r.isPresent()) {
 				continue;
 			}
 			Dataset er = r.get();
-
-			// average length of first row
-			String[] firstRow = er.getAttributes();
-			double firstRowLengthSum = 0.0;
-			for (int i = 0; i < firstRow.length; i++) {
-				firstRowLengthSum += firstRow[i].length();
-			}
-			if ((firstRowLengthSum / firstRow.length) < MIN_ATTRIBUTE_SIZE_AVG) {
-				stats.incCounter(TABLE_COUNTERS.SHORT_ATTRIBUTE_NAMES);
-				continue;
-			}
-			if ((firstRowLengthSum / firstRow.length) > MAX_ATTRIBUTE_SIZE_AVG) {
-				stats.incCounter(TABLE_COUNTERS.LONG_ATTRIBUTE_NAMES);
-				continue;
-			}
-
 			er.tableNum = count;
 			er.s3Link = metadata.getS3Link();
 			er.recordOffset = metadata.getStart();
@@ -185,43 +123,143 @@ public class BasicExtractionAlgorithm implements ExtractionAlgorithm {
 			er.url = metadata.getUrl();
 
 			if (tags == null && extract_terms) {
-				String bodyContent = doc.select("body").text();
-				Set<String> tagSet = termExtractor.topNTerms(bodyContent, 100);
-				tags = tagSet.toArray(new String[] {});
-				Arrays.sort(tags);
+				tags = topNTerms(doc);
 			}
 			er.termSet = tags;
-			er.hasHeader = has_header;
-			Elements caption = table.select("caption");
-			if (caption.size() == 1)
-				er.setTitle(cleanCell(caption.get(0).text()));
-			er.setPageTitle(doc.title());
+			// the title is looked up with a traversal of the document
+			if (pageTitle == null)
+				pageTitle = doc.title();
+			er.setPageTitle(pageTitle);
 			stats.incCounter(TABLE_COUNTERS.RELATIONS_FOUND);
 			result.add(er);
 		}
 		return result;
 	}
 
-	protected Optional<Dataset> doExtract(Element table, Elements trs,
+	/**
+	 * Filters and converts a leaf table outside of forms.
+	 * 
+	 * @return the relation of the table with header and title, without any
+	 *         information about the page
+	 */
+	protected Optional<Dataset> extractTable(ScannedTable scanned) {
+		// remove tables with less than N rows
+		Elements trs = scanned.getRows();
+		if (trs.size() < TABLE_MIN_ROWS) {
+			stats.incCounter(TABLE_COUNTERS.SMALL_TABLES);
+			return Optional.absent();
+		}
+		// remove tables with less than M columns
+		int maxtdCount = 0;
+		int[] tdCounts = new int[trs.size()];
+		Multiset<Integer> colCounts = HashMultiset.create();
+		for (int tr_idx = 0; tr_idx < trs.size(); tr_idx++) {
+			int td_size = scanned.getCells(tr_idx).size();
+			tdCounts[tr_idx] = td_size;
+			colCounts.add(td_size);
+			if (td_size > maxtdCount)
+				maxtdCount = td_size;
+		}
+		// find most common number of columns throughout all rows
+		colCounts = Multisets.copyHighestCountFirst(colCounts);
+			int mostFrequentColCount = colCounts.entrySet().iterator().next()
+					.getElement();
+		if (mostFrequentColCount < TABLE_MIN_COLS) {
+			stats.incCounter(TABLE_COUNTERS.SMALL_TABLES);
+			return Optional.absent();
+		}
+		// remove non-regular tables (there is a row with more columns
+		// than the most common number)
+		if (maxtdCount != mostFrequentColCount) {
+			stats.incCounter(TABLE_COUNTERS.NON_REGULAR_TABLES);
+			return Optional.absent();
+		}
+
+		// eliminate tables with "rowspan" or "colspan" for now
+		if (scanned.hasSpanningCells()) {
+			stats.incCounter(TABLE_COUNTERS.SPANNING_TD);
+			return Optional.absent();
+		}
+
+		// there should be header cells
+		Boolean has_header = true;
+		if (scanned.getHeaderCellCount() == 0) {
+			stats.incCounter(TABLE_COUNTERS.NO_HEADERS);
+			has_header = false;
+		}
+		// stats.reportProgress();
+		Optional<Dataset> r = doExtract(scanned, mostFrequentColCount);
+		if (!r.isPresent()) {
+			return Optional.absent();
+		}
+		Dataset er = r.get();
+
+		// average length of first row
+		String[] firstRow = er.getAttributes();
+		double firstRowLengthSum = 0.0;
+		for (int i = 0; i < firstRow.length; i++) {
+			firstRowLengthSum += firstRow[i].length();
+		}
+		if ((firstRowLengthSum / firstRow.length) < MIN_ATTRIBUTE_SIZE_AVG) {
+			stats.incCounter(TABLE_COUNTERS.SHORT_ATTRIBUTE_NAMES);
+			return Optional.absent();
+		}
+		if ((firstRowLengthSum / firstRow.length) > MAX_ATTRIBUTE_SIZE_AVG) {
+			stats.incCounter(TABLE_COUNTERS.LONG_ATTRIBUTE_NAMES);
+			return Optional.absent();
+		}
+
+		er.hasHeader = has_header;
+		Elements caption = scanned.getCaptions();
+		if (caption.size() == 1)
+			er.setTitle(cleanCell(caption.get(0).text()));
+		return Optional.of(er);
+	}
+
+	// the sorted top terms of the page's body text
+	protected String[] topNTerms(Document doc) throws IOException {
+		long start = System.nanoTime();
+		Element body = doc.body();
+		String[] tags = terms(body == null ? "" : body.text());
+		stats.recordTime(StatsKeeper.STAGES.TERMS, System.nanoTime() - start);
+		return tags;
+	}
+
+	protected String[] topNTerms(String bodyContent) throws IOException {
+		long start = System.nanoTime();
+		String[] tags = terms(bodyContent);
+		stats.recordTime(StatsKeeper.STAGES.TERMS, System.nanoTime() - start);
+		return tags;
+	}
+
+	private String[] terms(String bodyContent) throws IOException {
+		Set<String> tagSet = termExtractor.topNTerms(bodyContent, 100);
+		String[] tags = tagSet.toArray(new String[] {});
+		Arrays.sort(tags);
+		return tags;
+	}
+
+	protected Optional<Dataset> doExtract(ScannedTable table,
 			int mostFrequentColCount) {
 		// remove sparse tables (more than X% null cells)
-		int tableSize = trs.size() * mostFrequentColCount;
-		Optional<Dataset> r = asRelation(trs, mostFrequentColCount,
+		int tableSize = table.getRows().size() * mostFrequentColCount;
+		Optional<Dataset> r = asRelation(table, mostFrequentColCount,
 				((int) (TABLE_MAX_SPARSENESS * tableSize)),
 				((int) (TABLE_MAX_LINKS * tableSize)));
 
 		return r;
 	}
 
-	protected Optional<Dataset> asRelation(Elements input, int numCols,
+	protected Optional<Dataset> asRelation(ScannedTable table, int numCols,
 			int nullLimit, int linkLimit) {
 		int nullCounter = 0;
 		int linkCounter = 0;
+		Elements input = table.getRows();
 		int numRows = input.size();
 		String[][] relation = new String[numCols][numRows];
 		for (int r = 0; r < numRows; r++) {
 			int c;
-			Elements cells = input.get(r).select("td, th");
+			Elements cells = table.getCells(r);
 			int td_size = cells.size();
 			for (c = 0; c < td_size; c++) {
 				Element cell = cells.get(c);
@@ -232,7 +270,7 @@ public class BasicExtractionAlgorithm implements ExtractionAlgorithm {
 				if (cellStr.length() == 0) {
 					nullCounter += 1;
 				}
-				relation[c][r] = cellStr;
+				relation[c][r] = cellValues.get(cellStr);
 			}
 			for (int c_fill = c; c_fill < numCols; c_fill++) {
 				relation[c_fill][r] = ""; // just fill with empty string for now
@@ -293,10 +331,7 @@ public class BasicExtractionAlgorithm implements ExtractionAlgorithm {
 	}
 
 	protected static String cleanCell(String cell) {
-		cell = Jsoup.clean(cell, whitelist);
-		cell = StringEscapeUtils.unescapeHtml4(cell);
-		cell = cleaner.trimAndCollapseFrom(cell, ' ');
-		return cell;
+		return CellTools.cleanCell(cell);
 	}
 
 	/* (non-Javadoc)
@@ -312,7 +347,7 @@ public class BasicExtractionAlgorithm implements ExtractionAlgorithm {
 	public static void main(String[] args) throws MalformedURLException,
 			IOException, InterruptedException {
 		ExtractionAlgorithm ea = new BasicExtractionAlgorithm(
-				new StatsKeeper.HashMapStats(), true);
+				new StatsKeeper.EnumStats(), true);
 
 		for (String url : new String[] {
 				"http://en.wikipedia.org/wiki/List_of_countries_by_population",
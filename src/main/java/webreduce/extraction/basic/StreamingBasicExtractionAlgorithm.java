@@ -0,0 +1,92 @@
+package webreduce.extraction.basic;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import webreduce.data.Dataset;
+import webreduce.extraction.DocumentMetadata;
+import webreduce.extraction.StatsKeeper;
+import webreduce.extraction.StreamingExtractionAlgorithm;
+import webreduce.extraction.StreamingTableScanner;
+import webreduce.extraction.StreamingTableScanner.Page;
+import webreduce.extraction.StreamingTableScanner.TableRegion;
+import webreduce.extraction.TableScanner;
+import webreduce.extraction.TableScanner.ScannedTable;
+
+import com.google.common.base.Optional;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/*
+ * The basic algorithm on the page source: the tables, title and body text
+ * are found with a StreamingTableScanner, and only the leaf tables outside
+ * of forms are parsed, each on its own.
+ */
+public class StreamingBasicExtractionAlgorithm extends
+		BasicExtractionAlgorithm implements StreamingExtractionAlgorithm {
+
+	@Inject
+	public StreamingBasicExtractionAlgorithm(StatsKeeper stats,
+			@Named("extractTopNTerms") boolean th_extract_terms) {
+		super(stats, th_extract_terms);
+	}
+
+	@Override
+	public List<Dataset> extract(String html, DocumentMetadata metadata)
+			throws IOException, InterruptedException {
+		List<Dataset> result = new ArrayList<Dataset>();
+		Page page = StreamingTableScanner.scan(html, extract_terms);
+		String[] tags = null;
+		int count = -1;
+		for (TableRegion region : page.getTables()) {
+			stats.reportProgress();
+			count += 1;
+			stats.incCounter(TABLE_COUNTERS.TABLES_FOUND);
+
+			// remove tables inside forms
+			if (region.isInsideForm()) {
+				stats.incCounter(TABLE_COUNTERS.TABLES_INSIDE_FORMS);
+				continue;
+			}
+
+			// remove table with sub-tables
+			if (!region.isLeaf()) {
+				stats.incCounter(TABLE_COUNTERS.NON_LEAF_TABLES);
+				continue;
+			}
+
+			Document fragment = Jsoup.parseBodyFragment(html.substring(
+					region.getStart(), region.getEnd()));
+			List<ScannedTable> scanned = TableScanner.scan(fragment);
+			// the tree builder may still find a sub-table the scanner missed
+			if (scanned.isEmpty() || !scanned.get(0).isLeaf()) {
+				stats.incCounter(TABLE_COUNTERS.NON_LEAF_TABLES);
+				continue;
+			}
+
+			Optional<Dataset> r = extractTable(scanned.get(0));
+			if (!r.isPresent()) {
+				continue;
+			}
+			Dataset er = r.get();
+			er.tableNum = count;
+			er.s3Link = metadata.getS3Link();
+			er.recordOffset = metadata.getStart();
+			er.recordEndOffset = metadata.getEnd();
+			er.url = metadata.getUrl();
+
+			if (tags == null && extract_terms) {
+				tags = topNTerms(page.getText());
+			}
+			er.termSet = tags;
+			er.setPageTitle(page.getTitle());
+			stats.incCounter(TABLE_COUNTERS.RELATIONS_FOUND);
+			result.add(er);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,494 @@
+package webreduce.extraction.mh;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.meta.Bagging;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
+import weka.classifiers.trees.SimpleCart;
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+// The trees of a SimpleCart or RandomForest model flattened into primitive
+// arrays. Classifying a feature vector walks each tree once and yields both
+// the class and the distribution WEKA computes for it, without allocating
+// and without going through the Instance API. Only models whose results can
+// be reproduced exactly are compiled, all others are left to WEKA.
+public class CompiledForest {
+	private static Logger log = Logger.getLogger(CompiledForest.class);
+
+	// nodes of all trees, children of a node are stored next to each other
+	private final int[] attribute; // feature index, -1 for leaves
+	private final double[] threshold; // values below go to the first child
+	private final int[] firstChild;
+	private final int[] childCount;
+	private final double[] weight; // share of the parent's training data
+	private final int[] distOffset; // leaf distribution in leafDist
+	private final double[] leafDist;
+	private final int[] roots;
+	private final int numClasses;
+	private final int maxDepth;
+	private final boolean bagged; // averaged as in Bagging
+
+	// per-thread buffers for the evaluation of missing values, one per depth
+	private final ThreadLocal<double[][]> scratch = new ThreadLocal<double[][]>() {
+		@Override
+		protected double[][] initialValue() {
+			return new double[maxDepth + 2][numClasses];
+		}
+	};
+
+	private CompiledForest(Builder b, boolean bagged) {
+		this.attribute = b.attribute.toIntArray();
+		this.threshold = b.threshold.toDoubleArray();
+		this.firstChild = b.firstChild.toIntArray();
+		this.childCount = b.childCount.toIntArray();
+		this.weight = b.weight.toDoubleArray();
+		this.distOffset = b.distOffset.toIntArray();
+		this.leafDist = b.leafDist.toDoubleArray();
+		this.roots = b.roots.toIntArray();
+		this.numClasses = b.numClasses;
+		this.maxDepth = b.maxDepth;
+		this.bagged = bagged;
+	}
+
+	// returns the compiled form of the model, or null if the model (or a part
+	// of it) is of a kind whose results cannot be reproduced exactly
+	public static CompiledForest compile(Classifier model) {
+		try {
+			Builder b = new Builder();
+			if (model instanceof SimpleCart) {
+				b.numClasses = ((double[]) get(model, SimpleCart.class, "m_ClassProbs")).length;
+				b.roots.add(b.addCart((SimpleCart) model, 0));
+				b.layoutChildren();
+				return new CompiledForest(b, false);
+			} else if (model instanceof RandomForest) {
+				Bagging bagger = (Bagging) get(model, RandomForest.class, "m_bagger");
+				Classifier[] trees = (Classifier[]) get(bagger, "m_Classifiers");
+				int iterations = (Integer) get(bagger, "m_NumIterations");
+				if (trees == null || trees.length != iterations)
+					return refuse(model, "number of trees does not match");
+				for (Classifier tree : trees) {
+					if (!(tree instanceof RandomTree))
+						return refuse(model, "not a RandomTree: " + tree.getClass().getName());
+					if (get(tree, RandomTree.class, "m_zeroR") != null)
+						return refuse(model, "tree falls back to ZeroR");
+					Instances info = (Instances) get(tree, RandomTree.class, "m_Info");
+					if (!info.classAttribute().isNominal())
+						return refuse(model, "class attribute is not nominal");
+					if (b.numClasses == 0)
+						b.numClasses = info.numClasses();
+					else if (b.numClasses != info.numClasses())
+						return refuse(model, "trees disagree on the number of classes");
+					b.info = info;
+					b.roots.add(b.addRandomTree(get(tree, RandomTree.class, "m_Tree"), 0));
+				}
+				b.layoutChildren();
+				return new CompiledForest(b, true);
+			}
+			return refuse(model, "unsupported model type");
+		} catch (Unsupported e) {
+			return refuse(model, e.getMessage());
+		} catch (Exception e) {
+			log.warn("Could not compile " + model.getClass().getName(), e);
+			return null;
+		}
+	}
+
+	private static CompiledForest refuse(Classifier model, String reason) {
+		log.info("Not compiling " + model.getClass().getName() + ": " + reason);
+		return null;
+	}
+
+	public int numClasses() {
+		return numClasses;
+	}
+
+	// writes the class distribution for the feature vector into dist and
+	// returns the index of the predicted class as a double, or a missing
+	// value if no class has a positive probability (as classifyInstance)
+	public double classify(double[] features, double[] dist) {
+		Arrays.fill(dist, 0, numClasses, 0.0);
+		if (!bagged) {
+			evaluate(roots[0], features, dist, 0);
+		} else {
+			for (int root : roots) {
+				int node = descend(root, features);
+				if (attribute[node] < 0) {
+					int off = distOffset[node];
+					for (int j = 0; j < numClasses; j++)
+						dist[j] += leafDist[off + j];
+				} else {
+					// a missing value on the path, take the weighted route
+					double[] tree = scratch.get()[0];
+					evaluate(node, features, tree, 1);
+					for (int j = 0; j < numClasses; j++)
+						dist[j] += tree[j];
+				}
+			}
+			if (!Utils.eq(Utils.sum(dist), 0))
+				Utils.normalize(dist);
+		}
+
+		double max = 0;
+		int maxIndex = 0;
+		for (int j = 0; j < numClasses; j++) {
+			if (dist[j] > max) {
+				maxIndex = j;
+				max = dist[j];
+			}
+		}
+		if (max > 0)
+			return maxIndex;
+		return Instance.missingValue();
+	}
+
+	// follows the splits from node until a leaf or a missing value is reached
+	private int descend(int node, double[] features) {
+		int att;
+		while ((att = attribute[node]) >= 0) {
+			double value = features[att];
+			if (Double.isNaN(value))
+				return node;
+			node = firstChild[node] + (value < threshold[node] ? 0 : 1);
+		}
+		return node;
+	}
+
+	// distribution of the subtree at node, a missing value sends the instance
+	// down all branches, weighted by their share of the training data
+	private void evaluate(int node, double[] features, double[] out, int depth) {
+		node = descend(node, features);
+		if (attribute[node] < 0) {
+			System.arraycopy(leafDist, distOffset[node], out, 0, numClasses);
+			return;
+		}
+		Arrays.fill(out, 0, numClasses, 0.0);
+		double[] child = scratch.get()[depth + 1];
+		for (int i = 0; i < childCount[node]; i++) {
+			int c = firstChild[node] + i;
+			evaluate(c, features, child, depth + 1);
+			for (int j = 0; j < numClasses; j++)
+				out[j] += weight[c] * child[j];
+		}
+	}
+
+	private static class Unsupported extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		Unsupported(String message) {
+			super(message);
+		}
+	}
+
+	// collects the nodes depth-first, the children of each node are moved
+	// into consecutive slots by layoutChildren
+	private static class Builder {
+		IntList attribute = new IntList();
+		DoubleList threshold = new DoubleList();
+		IntList firstChild = new IntList();
+		IntList childCount = new IntList();
+		DoubleList weight = new DoubleList();
+		IntList distOffset = new IntList();
+		DoubleList leafDist = new DoubleList();
+		IntList roots = new IntList();
+		List<int[]> children = new ArrayList<int[]>();
+		int numClasses = 0;
+		int maxDepth = 0;
+		Instances info;
+
+		private int addNode(int att, double split, int[] kids, double[] props, double[] dist, int depth) {
+			int id = attribute.size();
+			attribute.add(att);
+			threshold.add(split);
+			firstChild.add(-1);
+			childCount.add(kids == null ? 0 : kids.length);
+			weight.add(0);
+			distOffset.add(-1);
+			children.add(kids);
+			if (kids != null) {
+				for (int i = 0; i < kids.length; i++)
+					weight.set(kids[i], props[i]);
+			}
+			if (dist != null) {
+				if (dist.length != numClasses)
+					throw new IllegalStateException("leaf distribution has " + dist.length + " classes");
+				distOffset.set(id, leafDist.size());
+				for (double d : dist)
+					leafDist.add(d);
+			}
+			maxDepth = Math.max(maxDepth, depth);
+			return id;
+		}
+
+		int addCart(SimpleCart tree, int depth) throws Exception {
+			if ((Boolean) get(tree, SimpleCart.class, "m_isLeaf"))
+				return addNode(-1, 0, null, null, (double[]) get(tree, SimpleCart.class, "m_ClassProbs"), depth);
+
+			Attribute att = (Attribute) get(tree, SimpleCart.class, "m_Attribute");
+			if (!att.isNumeric())
+				throw new Unsupported("split on non-numeric attribute " + att.name());
+			SimpleCart[] successors = (SimpleCart[]) get(tree, SimpleCart.class, "m_Successors");
+			double[] props = (double[]) get(tree, SimpleCart.class, "m_Props");
+			if (successors.length != 2)
+				throw new Unsupported("numeric split with " + successors.length + " branches");
+			// the weighted sum over all branches has the size of this node's distribution
+			if (((double[]) get(tree, SimpleCart.class, "m_ClassProbs")).length != numClasses)
+				throw new Unsupported("inner node distribution has a different number of classes");
+			int[] kids = new int[successors.length];
+			for (int i = 0; i < successors.length; i++)
+				kids[i] = addCart(successors[i], depth + 1);
+			return addNode(att.index(), (Double) get(tree, SimpleCart.class, "m_SplitValue"), kids, props, null, depth);
+		}
+
+		int addRandomTree(Object tree, int depth) throws Exception {
+			Class<?> c = tree.getClass();
+			int att = (Integer) get(tree, c, "m_Attribute");
+			if (att == -1) {
+				double[] dist = (double[]) get(tree, c, "m_ClassDistribution");
+				// unclassified leaves make WEKA fall back to the parent or return null
+				if (dist == null)
+					throw new Unsupported("leaf without class distribution");
+				dist = dist.clone();
+				double sum = Utils.sum(dist);
+				if (Double.isNaN(sum) || sum == 0)
+					throw new Unsupported("leaf distribution cannot be normalized");
+				Utils.normalize(dist);
+				return addNode(-1, 0, null, null, dist, depth);
+			}
+
+			if (!info.attribute(att).isNumeric())
+				throw new Unsupported("split on non-numeric attribute " + info.attribute(att).name());
+			Object[] successors = (Object[]) get(tree, c, "m_Successors");
+			double[] props = (double[]) get(tree, c, "m_Prop");
+			if (successors.length != 2)
+				throw new Unsupported("numeric split with " + successors.length + " branches");
+			int[] kids = new int[successors.length];
+			for (int i = 0; i < successors.length; i++)
+				kids[i] = addRandomTree(successors[i], depth + 1);
+			return addNode(att, (Double) get(tree, c, "m_SplitPoint"), kids, props, null, depth);
+		}
+
+		// renumbers the nodes breadth-first so siblings are adjacent
+		void layoutChildren() {
+			int n = attribute.size();
+			int[] newId = new int[n];
+			int[] order = new int[n];
+			int next = 0;
+			for (int r = 0; r < roots.size(); r++) {
+				int head = next;
+				order[next] = roots.get(r);
+				newId[roots.get(r)] = next++;
+				for (; head < next; head++) {
+					int[] kids = children.get(order[head]);
+					if (kids == null)
+						continue;
+					for (int k : kids) {
+						order[next] = k;
+						newId[k] = next++;
+					}
+				}
+			}
+
+			IntList att = new IntList(), first = new IntList(), count = new IntList(), offs = new IntList();
+			DoubleList thr = new DoubleList(), w = new DoubleList();
+			for (int i = 0; i < n; i++) {
+				int old = order[i];
+				int[] kids = children.get(old);
+				att.add(attribute.get(old));
+				thr.add(threshold.get(old));
+				first.add(kids == null ? -1 : newId[kids[0]]);
+				count.add(childCount.get(old));
+				w.add(weight.get(old));
+				offs.add(distOffset.get(old));
+			}
+			for (int r = 0; r < roots.size(); r++)
+				roots.set(r, newId[roots.get(r)]);
+			attribute = att;
+			threshold = thr;
+			firstChild = first;
+			childCount = count;
+			weight = w;
+			distOffset = offs;
+		}
+	}
+
+	private static Object get(Object o, String name) throws Exception {
+		for (Class<?> c = o.getClass(); c != null; c = c.getSuperclass()) {
+			try {
+				return get(o, c, name);
+			} catch (NoSuchFieldException e) {
+				continue;
+			}
+		}
+		throw new NoSuchFieldException(name);
+	}
+
+	private static Object get(Object o, Class<?> c, String name) throws Exception {
+		Field f = c.getDeclaredField(name);
+		f.setAccessible(true);
+		return f.get(o);
+	}
+
+	private static class IntList {
+		private int[] values = new int[64];
+		private int size = 0;
+
+		void add(int v) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = v;
+		}
+
+		int get(int i) {
+			return values[i];
+		}
+
+		void set(int i, int v) {
+			values[i] = v;
+		}
+
+		int size() {
+			return size;
+		}
+
+		int[] toIntArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	private static class DoubleList {
+		private double[] values = new double[64];
+		private int size = 0;
+
+		void add(double v) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = v;
+		}
+
+		double get(int i) {
+			return values[i];
+		}
+
+		void set(int i, double v) {
+			values[i] = v;
+		}
+
+		int size() {
+			return size;
+		}
+
+		double[] toDoubleArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	// compares the compiled models with WEKA on random feature vectors, some
+	// with missing values, and times both
+	public static void main(String[] args) throws Exception {
+		String[] paths = args.length > 0 ? args : new String[] { "/SimpleCart_P1.mdl",
+				"/RandomForest_P1.mdl", "/SimpleCart_P2.mdl", "/RandomForest_P2.mdl" };
+		Random random = new Random(7);
+		for (String path : paths) {
+			Classifier model = ModelRegistry.getModel(path);
+			CompiledForest compiled = compile(model);
+			if (compiled == null) {
+				System.out.println(path + ": not compiled");
+				continue;
+			}
+			Instances header = headerFor(model, compiled.numClasses());
+			int numAttributes = header.numAttributes() - 1;
+
+			List<double[]> vectors = new ArrayList<double[]>();
+			for (int i = 0; i < 20000; i++) {
+				double[] v = new double[numAttributes + 1];
+				for (int a = 0; a < numAttributes; a++) {
+					int kind = random.nextInt(20);
+					if (kind == 0)
+						v[a] = Instance.missingValue();
+					else if (kind < 4)
+						v[a] = random.nextInt(4);
+					else
+						v[a] = random.nextDouble() * Math.pow(10, random.nextInt(5) - 2);
+				}
+				v[numAttributes] = -1;
+				vectors.add(v);
+			}
+
+			int mismatches = 0;
+			double[] dist = new double[compiled.numClasses()];
+			for (double[] v : vectors) {
+				Instance inst = new Instance(1.0, v);
+				inst.setDataset(header);
+				double expectedClass = model.classifyInstance(inst);
+				double[] expected = model.distributionForInstance(inst);
+				double actualClass = compiled.classify(v, dist);
+				if (Double.doubleToLongBits(expectedClass) != Double.doubleToLongBits(actualClass)
+						|| !Arrays.equals(expected, dist))
+					mismatches++;
+			}
+
+			long start = System.nanoTime();
+			for (double[] v : vectors) {
+				Instance inst = new Instance(1.0, v);
+				inst.setDataset(header);
+				model.classifyInstance(inst);
+				model.distributionForInstance(inst);
+			}
+			long wekaTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (double[] v : vectors)
+				compiled.classify(v, dist);
+			long compiledTime = System.nanoTime() - start;
+
+			System.out.println(path + ": " + compiled.roots.length + " trees, "
+					+ compiled.attribute.length + " nodes, " + vectors.size()
+					+ " vectors compared, " + mismatches + " mismatches, WEKA "
+					+ wekaTime / 1000000 + " ms, compiled " + compiledTime / 1000000 + " ms");
+		}
+	}
+
+	// a dataset with numeric attributes and a nominal class last, as
+	// FeaturesP1 and FeaturesP2 build them
+	private static Instances headerFor(Classifier model, int numClasses) throws Exception {
+		int numAttributes = 0;
+		if (model instanceof SimpleCart) {
+			numAttributes = maxAttribute((SimpleCart) model) + 1;
+		} else {
+			Bagging bagger = (Bagging) get(model, RandomForest.class, "m_bagger");
+			Classifier tree = ((Classifier[]) get(bagger, "m_Classifiers"))[0];
+			numAttributes = ((Instances) get(tree, RandomTree.class, "m_Info")).numAttributes() - 1;
+		}
+		FastVector attributes = new FastVector();
+		for (int a = 0; a < numAttributes; a++)
+			attributes.addElement(new Attribute("a" + a));
+		FastVector classes = new FastVector();
+		for (int c = 0; c < numClasses; c++)
+			classes.addElement("c" + c);
+		attributes.addElement(new Attribute("class", classes));
+		Instances header = new Instances("Check", attributes, 0);
+		header.setClassIndex(numAttributes);
+		return header;
+	}
+
+	private static int maxAttribute(SimpleCart tree) throws Exception {
+		if ((Boolean) get(tree, SimpleCart.class, "m_isLeaf"))
+			return -1;
+		int max = ((Attribute) get(tree, SimpleCart.class, "m_Attribute")).index();
+		for (SimpleCart s : (SimpleCart[]) get(tree, SimpleCart.class, "m_Successors"))
+			max = Math.max(max, maxAttribute(s));
+		return max;
+	}
+}
@@ -7,11 +7,9 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
 import webreduce.data.Dataset;
@@ -19,9 +17,14 @@ import webreduce.data.TableType;
 import webreduce.extraction.DocumentMetadata;
 import webreduce.extraction.ExtractionAlgorithm;
 import webreduce.extraction.StatsKeeper;
+import webreduce.extraction.TableScanner;
+import webreduce.extraction.TableScanner.ScannedTable;
 import webreduce.extraction.basic.BasicExtractionAlgorithm;
+import webreduce.extraction.mh.tools.CellSummary;
 import webreduce.extraction.mh.tools.ClassificationResult;
 import webreduce.extraction.mh.tools.TableConvert;
+import webreduce.extraction.mh.tools.TableGrid;
+import webreduce.extraction.mh.tools.TableSummary;
 
 import com.google.common.base.Optional;
 import com.google.inject.Inject;
@@ -56,44 +59,49 @@ public class MHExtractionAlgorithm extends BasicExtractionAlgorithm {
 		// Get page content and parse with JSoup
 		String[] tags = null;
 		int count = -1;
+		String pageTitle = null;
 		// iterate tables tags; find relations
-		main_loop: for (Element table : doc.getElementsByTag("table")) {
+		for (ScannedTable scanned : TableScanner.scan(doc)) {
 			// boolean isFiltered = false;
 			stats.reportProgress();
 			count += 1;
 			stats.incCounter(TABLE_COUNTERS.TABLES_FOUND);
 
 			// remove tables inside forms
-			for (Element p : table.parents()) {
-				if (p.tagName().equals("form")) {
-					stats.incCounter(TABLE_COUNTERS.TABLES_INSIDE_FORMS);
-					continue main_loop;
-				}
+			if (scanned.isInsideForm()) {
+				stats.incCounter(TABLE_COUNTERS.TABLES_INSIDE_FORMS);
+				continue;
 			}
 
 			// remove table with sub-tables
-			Elements subTables = table.getElementsByTag("table");
-			subTables.remove(table);
-			if (subTables.size() > 0) {
+			if (!scanned.isLeaf()) {
 				stats.incCounter(TABLE_COUNTERS.NON_LEAF_TABLES);
 				continue;
 			}
 
 			// there should be header cells
 			Boolean has_header = true;
-			Elements headerCells = table.select("th");
-			if (headerCells.size() == 0) {
+			if (scanned.getHeaderCellCount() == 0) {
 				stats.incCounter(TABLE_COUNTERS.NO_HEADERS);
 				has_header = false;
 			}
 			// stats.reportProgress();
 			// MHs table extraction and classification
-			Optional<Element[][]> convertedTable = tableConverter.toTable(table);
+			long start = System.nanoTime();
+			Optional<TableGrid> convertedTable = tableConverter.toTable(scanned);
 			if (!convertedTable.isPresent()) {
+				stats.recordTime(StatsKeeper.STAGES.TABLE_CONVERT, System.nanoTime() - start);
 				stats.incCounter(TABLE_COUNTERS.SMALL_OR_IRREGULAR_TABLES);
 				continue;
 			}
-			ClassificationResult cResult = tableClassifier.classifyTable(convertedTable.get());
+			// cell texts and content types are computed only once per table
+			TableSummary summary = new TableSummary(convertedTable.get());
+			stats.recordTime(StatsKeeper.STAGES.TABLE_CONVERT, System.nanoTime() - start);
+			start = System.nanoTime();
+			ClassificationResult cResult = tableClassifier.classifyTable(summary);
+			long features = tableClassifier.takeFeatureNanos();
+			stats.recordTime(StatsKeeper.STAGES.FEATURES, features);
+			stats.recordTime(StatsKeeper.STAGES.CLASSIFY, System.nanoTime() - start - features);
 
 			stats.incCounter(cResult.getTableType());
 			if (cResult.getTableType() == TableType.LAYOUT) {
@@ -101,8 +109,8 @@ public class MHExtractionAlgorithm extends BasicExtractionAlgorithm {
 			}
 
 			Dataset ds = new Dataset();
-			ds.relation = toArrayOfString(convertedTable.get());
-			ds.headerPosition = headerPosition(table.getElementsByTag("tr"));
+			ds.relation = toArrayOfString(summary);
+			ds.headerPosition = headerPosition(scanned.getRows());
 			ds.tableNum = count;
 			ds.s3Link = metadata.getS3Link();
 			ds.recordOffset = metadata.getStart();
@@ -111,17 +119,16 @@ public class MHExtractionAlgorithm extends BasicExtractionAlgorithm {
 			ds.tableType = cResult.getTableType();
 
 			if (tags == null && extract_terms) {
-				String bodyContent = doc.select("body").text();
-				Set<String> tagSet = termExtractor.topNTerms(bodyContent, 100);
-				tags = tagSet.toArray(new String[]{});
-				Arrays.sort(tags);
+				tags = topNTerms(doc);
 			}
 			ds.termSet = tags;
 			ds.hasHeader = has_header;
-			Elements caption = table.select("caption");
+			Elements caption = scanned.getCaptions();
 			if (caption.size() == 1)
 				ds.setTitle(cleanCell(caption.get(0).text()));
-			ds.setPageTitle(doc.title());
+			if (pageTitle == null)
+				pageTitle = doc.title();
+			ds.setPageTitle(pageTitle);
 			stats.incCounter(TABLE_COUNTERS.RELATIONS_FOUND);
 			result.add(ds);
 		}
@@ -131,22 +138,22 @@ public class MHExtractionAlgorithm extends BasicExtractionAlgorithm {
 	/*
 	 * Convert to DWTC output format.
 	 * MH uses row-major, DWTC uses col-major layout.
-	 * MH uses Element[][], DWTC uses String[][]
+	 * MH uses TableGrid, DWTC uses String[][]
 	 * MH may contain null, DWTC not
 	 */
-	private String[][] toArrayOfString(Element[][] table) {
-		int numCols = table[0].length;
-		int numRows = table.length;
+	private String[][] toArrayOfString(TableSummary table) {
+		int numCols = table.getTableWidth();
+		int numRows = table.getTableHeight();
 		String[][] relation = new String[numCols][numRows];
 
 		for (int rowIndex = 0; rowIndex < numRows; rowIndex++) {
-			for (int colIndex = 0; colIndex < table[rowIndex].length; colIndex++) {
-				Element cell = table[rowIndex][colIndex];
+			for (int colIndex = 0; colIndex < numCols; colIndex++) {
+				CellSummary cell = table.getCell(rowIndex, colIndex);
 				String cellStr;
 				if (cell == null)
 					cellStr = "";
 				else
-					cellStr = cleanCell(cell.text());
+					cellStr = cellValues.get(cell.getCleanedText());
 				relation[colIndex][rowIndex] = cellStr;
 			}
 		}
@@ -160,7 +167,7 @@ public class MHExtractionAlgorithm extends BasicExtractionAlgorithm {
 			IOException, InterruptedException {
 		TableClassification tableClassifier = new TableClassification("/SimpleCart_P1.mdl", "/RandomForest_P2.mdl");
 		ExtractionAlgorithm ea = new MHExtractionAlgorithm(
-				new StatsKeeper.HashMapStats(), true, tableClassifier);
+				new StatsKeeper.EnumStats(), true, tableClassifier);
 
 		for (String url : new String[] {
 				"http://en.wikipedia.org/wiki/List_of_countries_by_population",
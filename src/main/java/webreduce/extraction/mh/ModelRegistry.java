@@ -0,0 +1,50 @@
+package webreduce.extraction.mh;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import weka.classifiers.Classifier;
+
+import com.google.common.base.Optional;
+
+// Deserializes each classifier model once per JVM and hands the same
+// instance to every TableClassification. Classifying an instance does not
+// modify the WEKA models used here, so they can be shared between threads.
+public class ModelRegistry {
+
+	private static final ConcurrentMap<String, Classifier> models = new ConcurrentHashMap<String, Classifier>();
+	private static final ConcurrentMap<String, Optional<CompiledForest>> compiledModels = new ConcurrentHashMap<String, Optional<CompiledForest>>();
+
+	// returns the model at the given classpath location, reading it
+	// only on the first request
+	public static Classifier getModel(String path) throws Exception {
+		Classifier model = models.get(path);
+		if (model == null) {
+			synchronized (models) {
+				model = models.get(path);
+				if (model == null) {
+					model = TableClassification.loadModelFromClasspath(path);
+					models.put(path, model);
+				}
+			}
+		}
+		return model;
+	}
+
+	// returns the compiled form of the model at the given classpath location,
+	// absent if the model cannot be compiled and has to be run by WEKA
+	public static Optional<CompiledForest> getCompiledModel(String path) throws Exception {
+		Optional<CompiledForest> compiled = compiledModels.get(path);
+		if (compiled == null) {
+			Classifier model = getModel(path);
+			synchronized (compiledModels) {
+				compiled = compiledModels.get(path);
+				if (compiled == null) {
+					compiled = Optional.fromNullable(CompiledForest.compile(model));
+					compiledModels.put(path, compiled);
+				}
+			}
+		}
+		return compiled;
+	}
+}
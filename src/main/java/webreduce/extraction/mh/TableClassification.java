@@ -1,11 +1,15 @@
 package webreduce.extraction.mh;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.jsoup.nodes.Element;
 
 import webreduce.data.TableType;
 import webreduce.extraction.mh.tools.ClassificationResult;
 import webreduce.extraction.mh.tools.TableConvert;
+import webreduce.extraction.mh.tools.TableGrid;
+import webreduce.extraction.mh.tools.TableSummary;
 import webreduce.extraction.mh.features.FeaturesP1;
 import webreduce.extraction.mh.features.FeaturesP2;
 import weka.classifiers.Classifier;
@@ -14,16 +18,51 @@ import weka.core.Instance;
 
 import com.google.common.base.Optional;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 
 
+// Classifies tables in two phases. A single instance is shared by all
+// extraction threads: the models are shared through the ModelRegistry,
+// and the feature computations, which keep state, exist once per thread.
+// Models which can be compiled into a CompiledForest are evaluated in that
+// form, all others by WEKA.
+@Singleton
 public class TableClassification {
 
 	private TableConvert tableConvert;
-	private FeaturesP1 phase1Features;
-	private FeaturesP2 phase2Features;
+	private ThreadLocal<FeaturesP1> phase1Features = new ThreadLocal<FeaturesP1>() {
+		@Override
+		protected FeaturesP1 initialValue() {
+			return new FeaturesP1();
+		}
+	};
+	private ThreadLocal<FeaturesP2> phase2Features = new ThreadLocal<FeaturesP2>() {
+		@Override
+		protected FeaturesP2 initialValue() {
+			return new FeaturesP2();
+		}
+	};
 	private Classifier classifier1;
 	private Classifier classifier2;
+	private CompiledForest compiled1;
+	private CompiledForest compiled2;
+	// distributions of the compiled models, copied by ClassificationResult
+	private ThreadLocal<double[][]> distributions = new ThreadLocal<double[][]>() {
+		@Override
+		protected double[][] initialValue() {
+			return new double[][] {
+					new double[compiled1 == null ? 0 : compiled1.numClasses()],
+					new double[compiled2 == null ? 0 : compiled2.numClasses()] };
+		}
+	};
+	// time the thread spent computing features, see takeFeatureNanos
+	private ThreadLocal<long[]> featureNanos = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
 	private Attribute classAttr1;
 	private Attribute classAttr2;
 	private double layoutVal, relationVal, entityVal, matrixVal, noneVal;
@@ -34,11 +73,11 @@ public class TableClassification {
 	@Inject
 	public TableClassification(@Named("phase1ModelPath") String phase1ModelPath, @Named("phase2ModelPath") String phase2ModelPath) {
 		tableConvert = new TableConvert(2, 2);
-		phase1Features = new FeaturesP1();
-		phase2Features = new FeaturesP2();
 		try {
-			classifier1 = loadModelFromClasspath(phase1ModelPath);
-			classifier2 = loadModelFromClasspath(phase2ModelPath);
+			classifier1 = ModelRegistry.getModel(phase1ModelPath);
+			classifier2 = ModelRegistry.getModel(phase2ModelPath);
+			compiled1 = ModelRegistry.getCompiledModel(phase1ModelPath).orNull();
+			compiled2 = ModelRegistry.getCompiledModel(phase2ModelPath).orNull();
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -51,24 +90,31 @@ public class TableClassification {
 
 
 		// Phase 1
-		classAttr1 = new Attribute("class", phase1Features.getClassVector());
+		classAttr1 = new Attribute("class", phase1Features.get().getClassVector());
 		layoutVal = classAttr1.indexOfValue("LAYOUT");
 
 
 		// Phase 2
-		classAttr2 = new Attribute("class", phase2Features.getClassVector());
+		classAttr2 = new Attribute("class", phase2Features.get().getClassVector());
 
 		relationVal = classAttr2.indexOfValue("RELATION");
 		entityVal = classAttr2.indexOfValue("ENTITY");
 		matrixVal = classAttr2.indexOfValue("MATRIX");
 		noneVal = classAttr2.indexOfValue("NONE");
+
+		// WEKA sizes the distribution of a forest by the class attribute of the
+		// instance, the compiled form by that of its trees
+		if (compiled1 != null && compiled1.numClasses() != classAttr1.numValues())
+			compiled1 = null;
+		if (compiled2 != null && compiled2.numClasses() != classAttr2.numValues())
+			compiled2 = null;
 	}
 
 	// Returns classification as TableType from given
 	// JSoup.Element 'table'
 	// Constructor of this class has to be called first
 	public ClassificationResult classifyTable(Element table) {
-		Optional<Element[][]> convertedTable = tableConvert.toTable(table);
+		Optional<TableGrid> convertedTable = tableConvert.toTable(table);
 		if (!convertedTable.isPresent()) {
 			// convert failed because of malformed table -> LAYOUT
 			double[] dist1 = new double[] {1.0, 0.0, 0.0, 0.0, 0.0};
@@ -76,21 +122,44 @@ public class TableClassification {
 		}
 		return classifyTable(convertedTable.get());
 	}
-	// Returns classification as TableType from given
-	// JSoup.Element 'table'
+	// Returns classification as TableType from a table
+	// converted by TableConvert
 	// Constructor of this class has to be called first
-	public ClassificationResult classifyTable(Element[][] convertedTable) {
+	public ClassificationResult classifyTable(TableGrid convertedTable) {
+		return classifyTable(new TableSummary(convertedTable));
+	}
+
+	// Returns classification as TableType from the summary
+	// of a converted table, shared by both phases
+	public ClassificationResult classifyTable(TableSummary convertedTable) {
 		double[] dist1, dist2;
-		Instance currentInst = phase1Features.computeFeatures(convertedTable);
+		FeaturesP1 features1 = phase1Features.get();
+		long start = System.nanoTime();
+		Instance currentInst = features1.computeFeatures(convertedTable);
+		addFeatureTime(start);
 		try {
-			double cls = classifier1.classifyInstance(currentInst);
-			dist1 = classifier1.distributionForInstance(currentInst);
+			double cls;
+			if (compiled1 != null) {
+				dist1 = distributions.get()[0];
+				cls = compiled1.classify(features1.getFeatureValues(), dist1);
+			} else {
+				cls = classifier1.classifyInstance(currentInst);
+				dist1 = classifier1.distributionForInstance(currentInst);
+			}
 			if (cls == layoutVal) {
 				return new ClassificationResult(TableType.LAYOUT, dist1, null);
 			} else {
-				currentInst = phase2Features.computeFeatures(convertedTable);
-				cls = classifier2.classifyInstance(currentInst);
-				dist2 = classifier2.distributionForInstance(currentInst);
+				FeaturesP2 features2 = phase2Features.get();
+				start = System.nanoTime();
+				currentInst = features2.computeFeatures(convertedTable);
+				addFeatureTime(start);
+				if (compiled2 != null) {
+					dist2 = distributions.get()[1];
+					cls = compiled2.classify(features2.getFeatureValues(), dist2);
+				} else {
+					cls = classifier2.classifyInstance(currentInst);
+					dist2 = classifier2.distributionForInstance(currentInst);
+				}
 				// classifier2.distributionForInstance(instance)
 				TableType resultType;
 				if (cls == relationVal)
@@ -115,6 +184,32 @@ public class TableClassification {
 
 	}
 
+	/**
+	 * @return the time the calling thread spent computing features since the
+	 *         last call, in nanoseconds
+	 */
+	public long takeFeatureNanos() {
+		long[] nanos = featureNanos.get();
+		long taken = nanos[0];
+		nanos[0] = 0;
+		return taken;
+	}
+
+	private void addFeatureTime(long start) {
+		featureNanos.get()[0] += System.nanoTime() - start;
+	}
+
+	// Classifies the converted tables of a page, the results are in the
+	// order of the tables. Each table goes through classifyTable, a batch
+	// over a column-major feature matrix was no faster with the compiled
+	// models.
+	public List<ClassificationResult> classifyTables(List<TableGrid> convertedTables) {
+		List<ClassificationResult> results = new ArrayList<ClassificationResult>(convertedTables.size());
+		for (TableGrid convertedTable : convertedTables)
+			results.add(classifyTable(convertedTable));
+		return results;
+	}
+
 	public static Classifier loadModelFromFile(String path) throws Exception {
 		return (Classifier) weka.core.SerializationHelper.read(path);
 	}
@@ -7,17 +7,16 @@ package webreduce.extraction.mh.features;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import org.jsoup.nodes.Element;
-import webreduce.extraction.mh.tools.CellTools;
+import webreduce.extraction.mh.tools.CellSummary;
 import webreduce.extraction.mh.tools.ContentType;
 import webreduce.extraction.mh.tools.TableStats;
-import webreduce.extraction.mh.tools.Tools;
+import webreduce.extraction.mh.tools.TableGrid;
+import webreduce.extraction.mh.tools.TableSummary;
 import weka.core.Attribute;
 import weka.core.FastVector;
 import weka.core.Instance;
+import weka.core.Instances;
 
 public class FeaturesP1 {
 	
@@ -33,6 +32,17 @@ public class FeaturesP1 {
 	private FastVector classAttrVector; // vector of strings of all possible class values
 	private Attribute classAttr;
 	
+	private Instances header; // empty dataset the instance belongs to
+	private double[] featureValues; // values of the instance, written in place
+	private Instance instance;
+	
+	// slots of the listener results in featureValues, per listener
+	// (and per local row/column index)
+	private int[][] globalSlots;
+	private int[][][] localRowSlots;
+	private int[][][] localColSlots;
+	private double[] listenerResults;
+	
 	public static List<String> getFeatureNames() {
 		return Arrays.asList(featureWhiteList.split(", "));
 	}
@@ -67,6 +77,19 @@ public class FeaturesP1 {
 		classAttr = new Attribute("CLASS", classAttrVector);
 		
 		attributeVector.addElement(classAttr);
+		
+		// unfortunately WEKA doesn't allow for standalone Instance objects without a dataset container,
+		// one empty container is enough though, as the instance is never added to it
+		header = new Instances("TestDataset", attributeVector, 0);
+		header.setClassIndex(header.numAttributes() - 1); // last attribute is classAttr
+		
+		// +1 because of additional class attribute, which gets a dummy value
+		featureValues = new double[attributeList.size() + 1];
+		featureValues[attributeList.size()] = -1;
+		instance = new Instance(1.0, featureValues);
+		instance.setDataset(header);
+		
+		initializeFeatures();
 	}
 	
 	// returns an ArrayList of all attributes that
@@ -75,7 +98,8 @@ public class FeaturesP1 {
 		return attributeList;
 	}
 	
-	// adds all desired features to the computation list
+	// adds all desired features to the computation list and
+	// resolves their results to slots of the feature vector
 	public void initializeFeatures() {
 		// Add global features to computation list
 		globalListeners = new ArrayList<AbstractTableListener>();
@@ -89,13 +113,17 @@ public class FeaturesP1 {
 		localListeners.add(new LocalRatioSpan());
 		localListeners.add(new LocalContentRatios());
 		localListeners.add(new LocalLengthVariance());
+		
+		resolveSlots();
 	}
 	
-	public Instance computeFeatures(Element[][] convertedTable) {
-		HashMap<String, Double> resultMap = new HashMap<String, Double>();
-		TableStats tStats = new TableStats(convertedTable[0].length, convertedTable.length);
-		
-		initializeFeatures();
+	// the returned instance is reused (and overwritten) by the next call
+	public Instance computeFeatures(TableGrid convertedTable) {
+		return computeFeatures(new TableSummary(convertedTable));
+	}
+	
+	public Instance computeFeatures(TableSummary table) {
+		TableStats tStats = new TableStats(table.getTableWidth(), table.getTableHeight());
 		
 		// GLOBAL FEATURES
 		
@@ -109,7 +137,7 @@ public class FeaturesP1 {
 				
 				// onCell event
 				for (AbstractTableListener listener : globalListeners) {
-					listener.computeCell(convertedTable[tStats.rowIndex][tStats.colIndex], tStats);
+					listener.computeCell(table.getCell(tStats.rowIndex, tStats.colIndex), tStats);
 				}	
 				
 			}
@@ -121,9 +149,9 @@ public class FeaturesP1 {
 			listener.end();
 		}
 		
-		// compute results of all listeners and put them into the result map
-		for (AbstractTableListener listener : globalListeners) {
-			resultMap.putAll(listener.getResults());
+		// write the results of all listeners into their slots
+		for (int l = 0; l < globalListeners.size(); l++) {
+			writeResults(globalListeners.get(l), globalSlots[l]);
 		}
 		
 
@@ -146,7 +174,7 @@ public class FeaturesP1 {
 			for (tStats.colIndex = 0; tStats.colIndex < tStats.getTableWidth(); tStats.colIndex++) {
 				// onCell event
 				for (AbstractTableListener listener : localListeners) {
-					listener.computeCell(convertedTable[currentRowIndex][tStats.colIndex], tStats);
+					listener.computeCell(table.getCell(currentRowIndex, tStats.colIndex), tStats);
 				}
 			}
 			
@@ -155,16 +183,11 @@ public class FeaturesP1 {
 				listener.end();
 			}
 			
-			// compute results of all listeners, rename them and put them 
-			// into the result map
-			for (AbstractTableListener listener : localListeners) {
-				HashMap<String, Double> results = listener.getResults();
-				for (Map.Entry<String, Double> entry : results.entrySet()) {
-					// insert as ORIGINAL_ATTRIBUTE_NAME_ROW_X where ROW_X is the
-					// specific row of the current loop
-					resultMap.put(entry.getKey() + "_ROW_" + i, entry.getValue());
-				}
-				
+			// write the results of all listeners into the slots of
+			// ORIGINAL_ATTRIBUTE_NAME_ROW_X where ROW_X is the
+			// specific row of the current loop
+			for (int l = 0; l < localListeners.size(); l++) {
+				writeResults(localListeners.get(l), localRowSlots[l][i]);
 			}
 		}
 		
@@ -185,7 +208,7 @@ public class FeaturesP1 {
 			for (tStats.rowIndex = 0; tStats.rowIndex < tStats.getTableHeight(); tStats.rowIndex++) {
 				// onCell event
 				for (AbstractTableListener listener : localListeners) {
-					listener.computeCell(convertedTable[tStats.rowIndex][currentColIndex], tStats);
+					listener.computeCell(table.getCell(tStats.rowIndex, currentColIndex), tStats);
 				}
 			}
 			
@@ -194,41 +217,78 @@ public class FeaturesP1 {
 				listener.end();
 			}
 	
-			// compute results of all listeners, rename them and put them 
-			// into the result map
-			for (AbstractTableListener listener : localListeners) {
-				HashMap<String, Double> results = listener.getResults();
-				for (Map.Entry<String, Double> entry : results.entrySet()) {
-					// insert as ORIGINAL_ATTRIBUTE_NAME_COL_X where COL_X is the
-					// specific column of the current loop
-					resultMap.put(entry.getKey() + "_COL_" + i, entry.getValue());
-				}
-				
+			// write the results of all listeners into the slots of
+			// ORIGINAL_ATTRIBUTE_NAME_COL_X where COL_X is the
+			// specific column of the current loop
+			for (int l = 0; l < localListeners.size(); l++) {
+				writeResults(localListeners.get(l), localColSlots[l][i]);
 			}
 		}
 
-		// Create WEKA instance
-		
-//		Instance resultInstance = new Instance(featureCount);
-		
-		// only use features within whitelist
-//		for (String entry : resultMap.keySet()) {
-//			if (featureWhiteList.contains(entry)) {
-//				Attribute newAttr = new Attribute(entry);
-//				resultInstance.setValue(newAttr, resultMap.get(entry));
-//			}
-//		}
-		
-		// The order in which the features are stored into the instance
-		// is CRUCIAL! It has to be the same order the models were gen-
-		// erated with!
-//		List<String> fnames = getFeatureNames();
-//		for (int i = 0; i < fnames.size(); i++) {
-//			String fname = fnames.get(i);
-//			resultInstance.setValue(i, resultMap.get(fname));
-//		}
-		
-		return Tools.createInstanceFromData(resultMap, attributeList, attributeVector);
+		// the instance is backed by the feature vector
+		return instance;
+	}
+	
+	// the feature vector behind the instance returned by computeFeatures,
+	// class value last
+	public double[] getFeatureValues() {
+		return featureValues;
+	}
+	
+	// copies the results of a listener into the feature vector, results
+	// without a slot are not part of the whitelist
+	private void writeResults(AbstractTableListener listener, int[] slots) {
+		listener.getResults(listenerResults);
+		for (int i = 0; i < slots.length; i++) {
+			if (slots[i] >= 0) {
+				featureValues[slots[i]] = listenerResults[i];
+			}
+		}
+	}
+	
+	// resolves all results of all listeners to their index in the
+	// feature vector, or -1 if they are not part of the whitelist
+	private void resolveSlots() {
+		List<String> names = getFeatureNames();
+		boolean[] resolved = new boolean[names.size()];
+		int maxResults = 0;
+		
+		globalSlots = new int[globalListeners.size()][];
+		for (int l = 0; l < globalListeners.size(); l++) {
+			String[] resultNames = globalListeners.get(l).getResultNames();
+			globalSlots[l] = resolveSlots(resultNames, "", names, resolved);
+			maxResults = Math.max(maxResults, resultNames.length);
+		}
+		
+		// three rows and three columns each
+		localRowSlots = new int[localListeners.size()][3][];
+		localColSlots = new int[localListeners.size()][3][];
+		for (int l = 0; l < localListeners.size(); l++) {
+			String[] resultNames = localListeners.get(l).getResultNames();
+			for (int i = 0; i < 3; i++) {
+				localRowSlots[l][i] = resolveSlots(resultNames, "_ROW_" + i, names, resolved);
+				localColSlots[l][i] = resolveSlots(resultNames, "_COL_" + i, names, resolved);
+			}
+			maxResults = Math.max(maxResults, resultNames.length);
+		}
+		listenerResults = new double[maxResults];
+		
+		for (int i = 0; i < resolved.length; i++) {
+			if (!resolved[i]) {
+				throw new IllegalStateException("No listener computes feature " + names.get(i));
+			}
+		}
+	}
+	
+	private static int[] resolveSlots(String[] resultNames, String suffix, List<String> names, boolean[] resolved) {
+		int[] slots = new int[resultNames.length];
+		for (int i = 0; i < resultNames.length; i++) {
+			slots[i] = names.indexOf(resultNames[i] + suffix);
+			if (slots[i] >= 0) {
+				resolved[slots[i]] = true;
+			}
+		}
+		return slots;
 	}
 	
 		
@@ -246,12 +306,12 @@ public class FeaturesP1 {
 		protected abstract void initialize(TableStats stats);
 		
 		
-		public void computeCell(Element content, TableStats stats) {
+		public void computeCell(CellSummary content, TableStats stats) {
 			onCell(content, stats);
 		}
 		
 		// should be called each time a cell is inspected by the subject
-		protected abstract void onCell(Element content, TableStats stats);
+		protected abstract void onCell(CellSummary content, TableStats stats);
 		
 		public void end() {
 			finalize();
@@ -264,8 +324,11 @@ public class FeaturesP1 {
 		// should be called once the table iteration has finished
 		protected abstract void finalize();
 		
-		// pairs of feature names and feature values are given as result
-		public abstract HashMap<String, Double> getResults();
+		// names of the feature values given as result
+		public abstract String[] getResultNames();
+		
+		// writes the feature values in the order of getResultNames()
+		public abstract void getResults(double[] result);
 	}
 	
 	
@@ -284,7 +347,7 @@ public class FeaturesP1 {
 			
 		}
 		
-		public void onCell(Element content, TableStats stats) {
+		public void onCell(CellSummary content, TableStats stats) {
 			
 		}
 		
@@ -292,10 +355,12 @@ public class FeaturesP1 {
 			
 		}
 		
-		public HashMap<String, Double> getResults() {
-			HashMap<String, Double> result = new HashMap<String, Double>();
-			result.put(featureName, new Double(0));
-			return result;
+		public String[] getResultNames() {
+			return new String[] {featureName};
+		}
+		
+		public void getResults(double[] result) {
+			result[0] = 0;
 		}
 	}
 	
@@ -313,7 +378,7 @@ public class FeaturesP1 {
 			tableWidth = stats.getTableWidth();
 		}
 		
-		public void onCell(Element content, TableStats stats) {
+		public void onCell(CellSummary content, TableStats stats) {
 			if (content != null) {
 				cellCount++;
 			}
@@ -323,10 +388,12 @@ public class FeaturesP1 {
 			avgRows = ((double) cellCount) / ((double) tableWidth);
 		}
 		
-		public HashMap<String, Double> getResults() {
-			HashMap<String, Double> result = new HashMap<String, Double>();
-			result.put(featureName, new Double(avgRows));
-			return result;
+		public String[] getResultNames() {
+			return new String[] {featureName};
+		}
+		
+		public void getResults(double[] result) {
+			result[0] = avgRows;
 		}
 	}
 	
@@ -344,7 +411,7 @@ public class FeaturesP1 {
 			tableHeight = stats.getTableHeight();
 		}
 		
-		public void onCell(Element content, TableStats stats) {
+		public void onCell(CellSummary content, TableStats stats) {
 			if (content != null) {
 				cellCount++;
 			}
@@ -354,10 +421,12 @@ public class FeaturesP1 {
 			avgCols = ((double) cellCount) / ((double) tableHeight);
 		}
 		
-		public HashMap<String, Double> getResults() {
-			HashMap<String, Double> result = new HashMap<String, Double>();
-			result.put(featureName, new Double(avgCols));
-			return result;
+		public String[] getResultNames() {
+			return new String[] {featureName};
+		}
+		
+		public void getResults(double[] result) {
+			result[0] = avgCols;
 		}
 	}
 
@@ -378,11 +447,11 @@ public class FeaturesP1 {
 			empty = 0;
 		}
 		
-		public void onCell(Element content, TableStats stats) {
+		public void onCell(CellSummary content, TableStats stats) {
 			if (content != null) {
 				cellCount++;
 				
-				ContentType ct = CellTools.getContentType(content);
+				ContentType ct = content.getContentType();
 				
 				switch(ct) {
 					case IMAGE: images++;
@@ -406,13 +475,15 @@ public class FeaturesP1 {
 			empty_ratio =			(cellCount > 0) ? ((double) empty / (double) cellCount)			: 0.0;
 		}
 		
-		public HashMap<String, Double> getResults() {
-			HashMap<String, Double> result = new HashMap<String, Double>();
-			result.put("RATIO_IMG", new Double(image_ratio));
-			result.put("RATIO_ALPHABETICAL", new Double(alphabetical_ratio));
-			result.put("RATIO_DIGIT", new Double(digit_ratio));
-			result.put("RATIO_EMPTY", new Double(empty_ratio));
-			return result;
+		public String[] getResultNames() {
+			return new String[] {"RATIO_IMG", "RATIO_ALPHABETICAL", "RATIO_DIGIT", "RATIO_EMPTY"};
+		}
+		
+		public void getResults(double[] result) {
+			result[0] = image_ratio;
+			result[1] = alphabetical_ratio;
+			result[2] = digit_ratio;
+			result[3] = empty_ratio;
 		}
 	}	
 
@@ -434,9 +505,9 @@ public class FeaturesP1 {
 			cellLengths = new ArrayList<Integer>();
 		}
 		
-		public void onCell(Element content, TableStats stats) {
+		public void onCell(CellSummary content, TableStats stats) {
 			if (content != null) {
-				cellLengths.add(CellTools.getCellLength(content));
+				cellLengths.add(content.getLength());
 			}
 		}
 		
@@ -449,10 +520,12 @@ public class FeaturesP1 {
 			average = (totalCells > 0) ? (sum / totalCells) : 0.0;
 		}
 		
-		public HashMap<String, Double> getResults() {
-			HashMap<String, Double> result = new HashMap<String, Double>();
-			result.put(featureName, new Double(average));
-			return result;
+		public String[] getResultNames() {
+			return new String[] {featureName};
+		}
+		
+		public void getResults(double[] result) {
+			result[0] = average;
 		}
 	}
 	
@@ -468,9 +541,9 @@ public class FeaturesP1 {
 			cellLengths = new ArrayList<Integer>();
 		}
 		
-		public void onCell(Element content, TableStats stats) {
+		public void onCell(CellSummary content, TableStats stats) {
 			if (content != null) {
-				cellLengths.add(CellTools.getCellLength(content));
+				cellLengths.add(content.getLength());
 			}
 		}
 		
@@ -492,10 +565,12 @@ public class FeaturesP1 {
 			variance = (totalCells > 0) ? (varSum / totalCells) : 0.0;
 		}
 		
-		public HashMap<String, Double> getResults() {
-			HashMap<String, Double> result = new HashMap<String, Double>();
-			result.put(featureName, new Double(variance));
-			return result;
+		public String[] getResultNames() {
+			return new String[] {featureName};
+		}
+		
+		public void getResults(double[] result) {
+			result[0] = variance;
 		}
 	}
 	
@@ -513,7 +588,7 @@ public class FeaturesP1 {
 			totalCells = 0;
 		}
 		
-		public void onCell(Element content, TableStats stats) {
+		public void onCell(CellSummary content, TableStats stats) {
 			if (content == null) {
 				nullCells++;
 			}
@@ -524,10 +599,12 @@ public class FeaturesP1 {
 			ratio = (totalCells > 0) ? ((double) nullCells / (double) totalCells) : 0.0;
 		}
 		
-		public HashMap<String, Double> getResults() {
-			HashMap<String, Double> result = new HashMap<String, Double>();
-			result.put(featureName, new Double(ratio));
-			return result;
+		public String[] getResultNames() {
+			return new String[] {featureName};
+		}
+		
+		public void getResults(double[] result) {
+			result[0] = ratio;
 		}
 	}
 	
@@ -546,32 +623,31 @@ public class FeaturesP1 {
 					 count_contains_number = count_is_number = 0;
 		}
 		
-		public void onCell(Element content, TableStats stats) {
+		public void onCell(CellSummary content, TableStats stats) {
 			if (content == null) {
 				return;
 			}
 			
 			// local content types are not exclusive!
 			// thus they aren't determined via getContentType(...) - which is exclusive
-			if (content.getElementsByTag("th").size() > 0) {
+			if (content.hasHeader()) {
 				count_th++;
 			}
-			if (content.getElementsByTag("a").size() > 0) {
+			if (content.hasAnchor()) {
 				count_anchor++;
 			}
-			if (content.getElementsByTag("img").size() > 0) {
+			if (content.hasImage()) {
 				count_img++;
 			}
-			if (content.getElementsByTag("input").size() > 0) {
+			if (content.hasInput()) {
 				count_input++;
 			}
-			String cleanedContent = CellTools.cleanCell(content.text());
 			// check for digit
-			if (cleanedContent.matches(".*\\d.*")) {
+			if (content.containsNumber()) {
 				count_contains_number++;
 			}
 			// check if only digit
-			if (CellTools.isNumericOnly(cleanedContent)) {
+			if (content.isNumber()) {
 				count_is_number++;
 			}
 			cellCount++;
@@ -586,15 +662,17 @@ public class FeaturesP1 {
 			ratio_is_number =		(cellCount > 0) ? ((double) count_is_number / (double) cellCount)		: 0.0;
 		}
 		
-		public HashMap<String, Double> getResults() {
-			HashMap<String, Double> result = new HashMap<String, Double>();
-			result.put("LOCAL_RATIO_HEADER", new Double(ratio_th));
-			result.put("LOCAL_RATIO_ANCHOR", new Double(ratio_anchor));
-			result.put("LOCAL_RATIO_IMAGE", new Double(ratio_img));
-			result.put("LOCAL_RATIO_INPUT", new Double(ratio_input));
-			result.put("LOCAL_RATIO_CONTAINS_NUMBER", new Double(ratio_contains_number));
-			result.put("LOCAL_RATIO_IS_NUMBER", new Double(ratio_is_number));
-			return result;
+		public String[] getResultNames() {
+			return new String[] {"LOCAL_RATIO_HEADER", "LOCAL_RATIO_ANCHOR", "LOCAL_RATIO_IMAGE", "LOCAL_RATIO_INPUT", "LOCAL_RATIO_CONTAINS_NUMBER", "LOCAL_RATIO_IS_NUMBER"};
+		}
+		
+		public void getResults(double[] result) {
+			result[0] = ratio_th;
+			result[1] = ratio_anchor;
+			result[2] = ratio_img;
+			result[3] = ratio_input;
+			result[4] = ratio_contains_number;
+			result[5] = ratio_is_number;
 		}
 	}
 	
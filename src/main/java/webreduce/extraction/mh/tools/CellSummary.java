@@ -0,0 +1,122 @@
+package webreduce.extraction.mh.tools;
+
+import org.jsoup.nodes.Element;
+
+// everything the features and the output conversion need to know about
+// a single cell, computed with one traversal of the cell's elements
+public class CellSummary {
+	// a cell without content, like the positions reserved by a rowspan
+	public static final CellSummary EMPTY = new CellSummary();
+
+	private boolean hasHeader, hasAnchor, hasImage, hasInput, hasSelect, hasForm;
+	private String text;
+	private String cleanedText;
+	private ContentType contentType;
+	private boolean containsNumber;
+	private boolean isNumber;
+
+	public CellSummary(Element cell) {
+		// same as getElementsByTag(...).size() > 0, which includes the
+		// cell itself
+		for (Element e : cell.getAllElements()) {
+			String tag = e.tagName();
+			if (tag.equals("th"))
+				hasHeader = true;
+			else if (tag.equals("a"))
+				hasAnchor = true;
+			else if (tag.equals("img"))
+				hasImage = true;
+			else if (tag.equals("input"))
+				hasInput = true;
+			else if (tag.equals("select"))
+				hasSelect = true;
+			else if (tag.equals("form"))
+				hasForm = true;
+		}
+		summarizeText(cell.text());
+	}
+
+	private CellSummary() {
+		summarizeText("");
+	}
+
+	private void summarizeText(String cellText) {
+		text = cellText;
+		cleanedText = CellTools.cleanCell(text);
+		// content type, digits and number in one pass over the cleaned text.
+		// The cleaned text has no line terminators, so containsNumber is the
+		// same as matching ".*\\d.*"
+		int alphaCount = 0, digitCount = 0;
+		boolean digit = false;
+		int numberState = CellTools.NUMBER_START;
+		for (int i = 0; i < cleanedText.length(); i++) {
+			char c = cleanedText.charAt(i);
+			if (Character.isAlphabetic(c)) {
+				alphaCount++;
+			} else if (Character.isDigit(c)) {
+				digitCount++;
+				digit |= c >= '0' && c <= '9';
+			}
+			numberState = CellTools.nextNumberState(numberState, c);
+		}
+		if (hasForm || hasAnchor || hasImage)
+			contentType = CellTools.getContentType(hasForm, hasAnchor, hasImage, cleanedText);
+		else
+			contentType = CellTools.getTextContentType(cleanedText.length(), alphaCount, digitCount);
+		containsNumber = digit;
+		isNumber = CellTools.isNumber(numberState, cleanedText);
+	}
+
+	// the cell's text as returned by Element.text()
+	public String getText() {
+		return text;
+	}
+
+	// the cell's text after CellTools.cleanCell
+	public String getCleanedText() {
+		return cleanedText;
+	}
+
+	// same as CellTools.getCellLength
+	public int getLength() {
+		return text.length();
+	}
+
+	public boolean hasHeader() {
+		return hasHeader;
+	}
+
+	public boolean hasAnchor() {
+		return hasAnchor;
+	}
+
+	public boolean hasImage() {
+		return hasImage;
+	}
+
+	public boolean hasInput() {
+		return hasInput;
+	}
+
+	public boolean hasSelect() {
+		return hasSelect;
+	}
+
+	public boolean hasForm() {
+		return hasForm;
+	}
+
+	// same as CellTools.getContentType
+	public ContentType getContentType() {
+		return contentType;
+	}
+
+	public boolean containsNumber() {
+		return containsNumber;
+	}
+
+	// same as CellTools.isNumericOnly on the cleaned text
+	public boolean isNumber() {
+		return isNumber;
+	}
+}
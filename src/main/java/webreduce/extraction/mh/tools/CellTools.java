@@ -1,96 +1,333 @@
-package webreduce.extraction.mh.tools;
-
-import org.apache.commons.lang3.StringEscapeUtils;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Element;
-import org.jsoup.safety.Whitelist;
-
-import com.google.common.base.CharMatcher;
-
-public class CellTools {
-
-	
-		// returns the ContentType a cell contains
-		// the different types are exclusive herein!
-		public static ContentType getContentType(Element cellContent) {
-			
-			// Tags are NOT valued equally, <form> takes priority
-			// and <img> is the least important
-			// e.g. an image within a form is most likely an icon or visual hint
-			// e.g. an image within in an anchor tag is most likely the link's
-			// visual representation
-			// e.g. an anchor within a form is mostly likely a link to a help page
-			// or something related to the form's input fields (forgot password link)
-			if (cellContent.getElementsByTag("form").size() > 0) {
-				return ContentType.FORM;
-			} else if (cellContent.getElementsByTag("a").size() > 0) {
-				return ContentType.HYPERLINK;
-			} else if (cellContent.getElementsByTag("img").size() > 0) {
-				return ContentType.IMAGE;
-			} else {
-				// no relevant tags -> inspect content
-				
-				// clean and replace all invisible characters (this removes white spaces!)
-				String cellStr = cleanCell(cellContent.text()).replaceAll("\\s+","");
-			
-				if (cellStr.length() > 0) {
-					
-					// count occurrences of alphabetical and numerical
-					// characters within the content string
-					int alphaCount = 0, digitCount = 0;
-					for (char c : cellStr.toCharArray()) {
-						if(Character.isAlphabetic(c)) {
-							alphaCount++;
-						} else if (Character.isDigit(c)) {
-							digitCount++;
-						}
-					}
-					
-					if ((alphaCount + digitCount) == 0) {
-						// neither alphabetical nor numerical
-						return ContentType.OTHERS;
-					} else {
-						
-						// determine dominant type						
-						if (digitCount > alphaCount) {
-							return ContentType.DIGIT;
-						} else {
-							return ContentType.ALPHABETICAL;
-						}
-					}
-					
-				} else {
-					// empty string
-					return ContentType.EMPTY;
-				}
-			}
-		}
-		
-		// returns the cell content's length for a given cell
-		// used for features which calculate results using this value
-		// all cleaning should be done herein
-		public static int getCellLength(Element cell) {
-			return cell.text().length();
-		}
-		
-		public static boolean isNumericOnly(String str)  
-		{  
-		  try  
-		  {  
-		    Double.parseDouble(str);  
-		  }  
-		  catch(NumberFormatException nfe)  
-		  {  
-		    return false;  
-		  }  
-		  return true;  
-		}
-		
-		// cleans up cell's string content using JSoup
-		public static String cleanCell(String cell) {
-			cell = Jsoup.clean(cell, Whitelist.simpleText());
-			cell = StringEscapeUtils.unescapeHtml4(cell);
-			cell = CharMatcher.WHITESPACE.trimAndCollapseFrom(cell, ' ');
-			return cell;
-		}
-}
+package webreduce.extraction.mh.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Element;
+import org.jsoup.safety.Whitelist;
+
+import com.google.common.base.CharMatcher;
+
+public class CellTools {
+
+		private static final CharMatcher WHITESPACE = CharMatcher.WHITESPACE;
+
+	
+		// returns the ContentType a cell contains
+		// the different types are exclusive herein!
+		public static ContentType getContentType(Element cellContent) {
+			return getContentType(cellContent.getElementsByTag("form").size() > 0,
+					cellContent.getElementsByTag("a").size() > 0,
+					cellContent.getElementsByTag("img").size() > 0,
+					cleanCell(cellContent.text()));
+		}
+
+		// returns the ContentType of a cell from the tags it contains
+		// and its cleaned text
+		public static ContentType getContentType(boolean hasForm,
+				boolean hasAnchor, boolean hasImage, String cleanedText) {
+			
+			// Tags are NOT valued equally, <form> takes priority
+			// and <img> is the least important
+			// e.g. an image within a form is most likely an icon or visual hint
+			// e.g. an image within in an anchor tag is most likely the link's
+			// visual representation
+			// e.g. an anchor within a form is mostly likely a link to a help page
+			// or something related to the form's input fields (forgot password link)
+			if (hasForm) {
+				return ContentType.FORM;
+			} else if (hasAnchor) {
+				return ContentType.HYPERLINK;
+			} else if (hasImage) {
+				return ContentType.IMAGE;
+			} else {
+				// no relevant tags -> inspect content
+				
+				// the cleaned text is trimmed, so it is empty exactly if it
+				// is empty without white spaces, and white spaces count as
+				// neither alphabetical nor numerical
+				if (cleanedText.length() > 0) {
+					
+					// count occurrences of alphabetical and numerical
+					// characters within the content string
+					int alphaCount = 0, digitCount = 0;
+					for (int i = 0; i < cleanedText.length(); i++) {
+						char c = cleanedText.charAt(i);
+						if(Character.isAlphabetic(c)) {
+							alphaCount++;
+						} else if (Character.isDigit(c)) {
+							digitCount++;
+						}
+					}
+					return getTextContentType(cleanedText.length(), alphaCount, digitCount);
+					
+				} else {
+					// empty string
+					return ContentType.EMPTY;
+				}
+			}
+		}
+		
+		// the ContentType of a cell without form, anchor or image from the
+		// length of its cleaned text and its numbers of alphabetical
+		// (Character.isAlphabetic) and numerical (Character.isDigit) chars
+		public static ContentType getTextContentType(int length, int alphaCount, int digitCount) {
+			if (length == 0) {
+				// empty string
+				return ContentType.EMPTY;
+			} else if ((alphaCount + digitCount) == 0) {
+				// neither alphabetical nor numerical
+				return ContentType.OTHERS;
+			} else if (digitCount > alphaCount) {
+				// determine dominant type
+				return ContentType.DIGIT;
+			} else {
+				return ContentType.ALPHABETICAL;
+			}
+		}
+		
+		// returns the cell content's length for a given cell
+		// used for features which calculate results using this value
+		// all cleaning should be done herein
+		public static int getCellLength(Element cell) {
+			return cell.text().length();
+		}
+		
+		// true if Double.parseDouble accepts the string, decided without
+		// parsing it (and without an exception for the non-numbers)
+		public static boolean isNumericOnly(String str) {
+			int state = NUMBER_START;
+			for (int i = 0; i < str.length() && state != NUMBER_FAIL; i++)
+				state = nextNumberState(state, str.charAt(i));
+			return isNumber(state, str);
+		}
+		
+		public static boolean isNumericOnlyWithParse(String str)  
+		{  
+		  try  
+		  {  
+		    Double.parseDouble(str);  
+		  }  
+		  catch(NumberFormatException nfe)  
+		  {  
+		    return false;  
+		  }  
+		  return true;  
+		}
+		
+		// states of the scanner for the strings accepted by Double.parseDouble,
+		// which are trimmed of chars up to ' ' and then follow
+		// [+-] (digits [. digits] | . digits) [(e|E) [+-] digits] [fFdD].
+		// NaN, Infinity and hexadecimal numbers are left to parseDouble.
+		public static final int NUMBER_START = 0;
+		public static final int NUMBER_FAIL = 1;
+		private static final int NUMBER_FALLBACK = 2; // decided by parseDouble
+		private static final int NUMBER_SIGN = 3;
+		private static final int NUMBER_ZERO = 4; // a leading 0, maybe of 0x
+		private static final int NUMBER_INT = 5;
+		private static final int NUMBER_DOT = 6; // a point without digits before
+		private static final int NUMBER_FRAC = 7;
+		private static final int NUMBER_EXP = 8;
+		private static final int NUMBER_EXP_SIGN = 9;
+		private static final int NUMBER_EXP_DIGITS = 10;
+		private static final int NUMBER_SUFFIX = 11;
+		private static final int NUMBER_TRAILING = 12;
+		
+		// the state of the number scanner after the char
+		public static int nextNumberState(int state, char c) {
+			boolean digit = c >= '0' && c <= '9';
+			switch (state) {
+			case NUMBER_START:
+				if (c <= ' ')
+					return NUMBER_START;
+				if (c == '+' || c == '-')
+					return NUMBER_SIGN;
+				// fall through
+			case NUMBER_SIGN:
+				if (c == '0')
+					return NUMBER_ZERO;
+				if (digit)
+					return NUMBER_INT;
+				if (c == '.')
+					return NUMBER_DOT;
+				if (c == 'N' || c == 'I')
+					return NUMBER_FALLBACK;
+				return NUMBER_FAIL;
+			case NUMBER_ZERO:
+				if (c == 'x' || c == 'X')
+					return NUMBER_FALLBACK;
+				// fall through
+			case NUMBER_INT:
+				if (digit)
+					return NUMBER_INT;
+				if (c == '.')
+					return NUMBER_FRAC;
+				return afterDigits(c);
+			case NUMBER_DOT:
+				return digit ? NUMBER_FRAC : NUMBER_FAIL;
+			case NUMBER_FRAC:
+				if (digit)
+					return NUMBER_FRAC;
+				return afterDigits(c);
+			case NUMBER_EXP:
+				if (c == '+' || c == '-')
+					return NUMBER_EXP_SIGN;
+				// fall through
+			case NUMBER_EXP_SIGN:
+				return digit ? NUMBER_EXP_DIGITS : NUMBER_FAIL;
+			case NUMBER_EXP_DIGITS:
+				if (digit)
+					return NUMBER_EXP_DIGITS;
+				return afterExponent(c);
+			case NUMBER_SUFFIX:
+			case NUMBER_TRAILING:
+				return c <= ' ' ? NUMBER_TRAILING : NUMBER_FAIL;
+			default:
+				// failed or left to parseDouble
+				return state;
+			}
+		}
+		
+		private static int afterDigits(char c) {
+			if (c == 'e' || c == 'E')
+				return NUMBER_EXP;
+			return afterExponent(c);
+		}
+		
+		private static int afterExponent(char c) {
+			if (c == 'f' || c == 'F' || c == 'd' || c == 'D')
+				return NUMBER_SUFFIX;
+			return c <= ' ' ? NUMBER_TRAILING : NUMBER_FAIL;
+		}
+		
+		// true if the string the scanner ended in the state for is a number
+		public static boolean isNumber(int state, String str) {
+			switch (state) {
+			case NUMBER_ZERO:
+			case NUMBER_INT:
+			case NUMBER_FRAC:
+			case NUMBER_EXP_DIGITS:
+			case NUMBER_SUFFIX:
+			case NUMBER_TRAILING:
+				return true;
+			case NUMBER_FALLBACK:
+				return isNumericOnlyWithParse(str);
+			default:
+				return false;
+			}
+		}
+		
+		// cleans up cell's string content, gives the same result as
+		// cleanCellWithJsoup. Text without markup, entities or control
+		// characters (nearly all cells) only needs its whitespace trimmed
+		// and collapsed, which is done in a single pass here; the cell
+		// itself is returned if there is nothing to change.
+		public static String cleanCell(String cell) {
+			int length = cell.length();
+			boolean changed = false;
+			boolean lastWhitespace = true;
+			for (int i = 0; i < length; i++) {
+				char c = cell.charAt(i);
+				if (c < 0x20) {
+					if (c != '\t' && c != '\n' && c != '\r' && c != '\f')
+						return cleanCellWithJsoup(cell);
+				} else if (c == '<' || c == '&' || c == '\uffff') {
+					// markup, entities, Jsoup's end of input marker
+					return cleanCellWithJsoup(cell);
+				}
+				if (WHITESPACE.matches(c)) {
+					// leading, repeated or other than a single space
+					if (lastWhitespace || c != ' ')
+						changed = true;
+					lastWhitespace = true;
+				} else {
+					lastWhitespace = false;
+				}
+			}
+			if (!changed && !lastWhitespace)
+				return cell;
+
+			char[] result = new char[length];
+			int n = 0;
+			boolean pending = false;
+			for (int i = 0; i < length; i++) {
+				char c = cell.charAt(i);
+				if (WHITESPACE.matches(c)) {
+					pending = n > 0;
+				} else {
+					if (pending)
+						result[n++] = ' ';
+					pending = false;
+					result[n++] = c;
+				}
+			}
+			return new String(result, 0, n);
+		}
+
+		// cleans up cell's string content using JSoup
+		public static String cleanCellWithJsoup(String cell) {
+			cell = Jsoup.clean(cell, Whitelist.simpleText());
+			cell = StringEscapeUtils.unescapeHtml4(cell);
+			cell = WHITESPACE.trimAndCollapseFrom(cell, ' ');
+			return cell;
+		}
+
+		// ONLY FOR TESTING PURPOSES
+		// compares cleanCell with cleanCellWithJsoup on the given strings
+		// and on random strings built from the characters both treat
+		// specially
+		public static void main(String[] args) {
+			List<String> cells = new ArrayList<String>(Arrays.asList(args));
+			cells.addAll(Arrays.asList("", " ", "plain", "  spaced   text  ",
+					"a\tb\nc\r\nd", "\u00a0x\u00a0", "x\u2003 y", "M\u00fcnchen caf\u00e9",
+					"Beta & Co", "Q&A", "&amp;copy", "&copy", "a < b", "<b>bold</b>",
+					"x > y", "\"quoted\"", "\u00a9 2014", "a\u0000b", "\u0001a",
+					"\ud83d\ude00 smile", "\ud800 lone", "12,345", "3.14"));
+			String alphabet = "ab1 \t\n\r\f\u000b\u00a0\u2003\u3000\u0085<>&;#\"'\u0000\u0001\u001f\u00a9\u00e9\ud83d\ude00\ufeff\u0080\u009f\uffff";
+			Random random = new Random(7);
+			for (int i = 0; i < 200000; i++) {
+				StringBuilder sb = new StringBuilder();
+				for (int j = random.nextInt(12); j > 0; j--)
+					sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+				cells.add(sb.toString());
+			}
+			int mismatches = 0;
+			for (String cell : cells) {
+				String expected = cleanCellWithJsoup(cell);
+				String actual = cleanCell(cell);
+				if (!expected.equals(actual)) {
+					mismatches++;
+					System.out.println("mismatch for \"" + StringEscapeUtils.escapeJava(cell)
+							+ "\": \"" + StringEscapeUtils.escapeJava(expected) + "\" vs. \""
+							+ StringEscapeUtils.escapeJava(actual) + "\"");
+				}
+			}
+			System.out.println(cells.size() + " cells compared, " + mismatches + " mismatches");
+			
+			// isNumericOnly against Double.parseDouble
+			List<String> numbers = new ArrayList<String>(Arrays.asList(args));
+			numbers.addAll(Arrays.asList("", " ", "0", "-0", "+1", "1.", ".5", ".", "-.", "+", "1e5",
+					"1E-5", "1e", "1e+", ".e1", "1.e1", "1f", "1.5D", "1fd", "0x1p3", "0x1", "0X1.8P1",
+					"NaN", "-Infinity", "Infinityx", "nan", " 12 ", "1 2", "12,345", "1.2.3",
+					"2014-01-01", "\u0001" + "3", "3\u0000", "\u0661"));
+			String numberAlphabet = "0123456789+-.eEfFdDxXpPNaIity ,\t\u0001\u0661";
+			for (int i = 0; i < 200000; i++) {
+				StringBuilder sb = new StringBuilder();
+				for (int j = random.nextInt(8); j > 0; j--)
+					sb.append(numberAlphabet.charAt(random.nextInt(numberAlphabet.length())));
+				numbers.add(sb.toString());
+			}
+			mismatches = 0;
+			for (String number : numbers) {
+				if (isNumericOnly(number) != isNumericOnlyWithParse(number)) {
+					mismatches++;
+					System.out.println("mismatch for \"" + StringEscapeUtils.escapeJava(number) + "\"");
+				}
+			}
+			System.out.println(numbers.size() + " numbers compared, " + mismatches + " mismatches");
+		}
+}
@@ -2,10 +2,18 @@ package webreduce.extraction.mh.tools;
 
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
+
+import webreduce.extraction.TableScanner.ScannedTable;
+
 import com.google.common.base.Optional;
 
 public class TableConvert {
@@ -18,14 +26,30 @@ public class TableConvert {
 		this.minCols = minCols;
 	}
 
-	// converts a 'table'-DOM-Element to a 2D array of Elements representing
-	// the table
-	// single cells can then be accessed via result[row][col]
-	public Optional<Element[][]> toTable(Element table) {
+	// converts a 'table'-DOM-Element to a grid of its cells
+	// single cells can then be accessed via result.getCell(row, col)
+	public Optional<TableGrid> toTable(Element table) {
 		if (!table.nodeName().equals("table")) {
 			return Optional.absent();
 		}
+		Elements tableRows = table.getElementsByTag("tr");
+		List<Elements> rowCells = new ArrayList<Elements>(tableRows.size());
+		for (Element row : tableRows)
+			rowCells.add(row.select("td, th"));
+		return toTable(rowCells);
+	}
+
+	// same as toTable(table.getTable()) for a leaf table
+	public Optional<TableGrid> toTable(ScannedTable table) {
+		int tableHeight = table.getRows().size();
+		List<Elements> rowCells = new ArrayList<Elements>(tableHeight);
+		for (int row = 0; row < tableHeight; row++)
+			rowCells.add(table.getCells(row));
+		return toTable(rowCells);
+	}
 
+	// the cells of each row, each row starts at column 0
+	private Optional<TableGrid> toTable(List<Elements> rowCells) {
 		// this code won't work if a full row or full column
 		// has a rowspan or colspan respectively -
 		// this would lead to incorrect calculation of tableWidth
@@ -33,113 +57,126 @@ public class TableConvert {
 		// cols are ignored whereas the computation depends on correct
 		// table width and table height when parsing spans
 
-		// this is addressed using the throws declaration
-
-		Elements tableRows = table.getElementsByTag("tr");
-		int tableHeight = tableRows.size();
+		// tables whose spans reach beyond the grid or cannot be parsed
+		// are rejected
 
+		int tableHeight = rowCells.size();
 		int tableWidth = 0;
-		for (int tr_idx = 0; tr_idx < tableHeight; tr_idx++) {
-			Elements tds = tableRows.get(tr_idx).select("td, th");
-			int td_size = tds.size();
-			if (td_size > tableWidth)
-				tableWidth = td_size;
+		int cellCount = 0;
+		for (Elements cells : rowCells) {
+			if (cells.size() > tableWidth)
+				tableWidth = cells.size();
+			cellCount += cells.size();
 		}
 
 		if (tableHeight < 2 || tableWidth < 2)
 			return Optional.absent();
 
-		Element[][] result = new Element[tableHeight][tableWidth];
-
-		try {
-			row_computation:
-			for (int rowIndex = 0; rowIndex < tableHeight; rowIndex++) {
-				Elements colCells = tableRows.get(rowIndex).select("td, th");
-
-				int colIndex = 0;
-				column_computation:
-				for (Element currentCell : colCells) {
-
-					// skip cells which have been marked in result array
-					// (entries in result should always be null unless
-					// manipulated beforehand, which means those cells
-					// have been reserved for spans)
-
-					// this will throw an IndexOutOfBounds exception if the table
-					// is malformed (i.e. invalid spans). Calling methods should
-					// catch those errors and ignore these tables
-					while(result[rowIndex][colIndex] != null) {
-						result[rowIndex][colIndex] = null;
-						colIndex++;
-					}
-
-					if (rowIndex >= tableHeight) {
-						// System.out.println("ERROR: table row index out of bounds, cancelling table");
-						break row_computation;
-					} else if (colIndex >= tableWidth) {
-						// System.out.println("ERROR: table column index out of bounds (invalid colspan?), continue with next row");
-						continue column_computation;
-					}
-					result[rowIndex][colIndex] = currentCell;
-
-					// check for colspan attribute
-					int colspan = 1;
-					if (currentCell.hasAttr("colspan")) {
-						colspan = Integer.valueOf(currentCell.attr("colspan"));
-					}
-
-					// if colspan > 1 then insert blank cells into the result array
-					// (= skip their position in the result array)
-					if (colspan > 1) {
-						int emptyCells = colspan - 1;
-						colIndex += emptyCells;
-					}
-					// check for rowspan attribute
-					int rowspan = 1;
-					if (currentCell.hasAttr("rowspan")) {
-						rowspan = Integer.valueOf(currentCell.attr("rowspan"));
+		Element[] placed = new Element[cellCount];
+		int[] grid = new int[tableHeight * tableWidth];
+		Arrays.fill(grid, TableGrid.NO_CELL);
+		// positions reserved by rowspans of the rows above
+		BitSet spanned = new BitSet(grid.length);
+		int placedCount = 0;
+
+		for (int rowIndex = 0; rowIndex < tableHeight; rowIndex++) {
+			int colIndex = 0;
+			for (Element currentCell : rowCells.get(rowIndex)) {
+				// skip positions reserved for spans, they stay empty
+				while (true) {
+					if (colIndex < 0 || colIndex >= tableWidth)
+						return Optional.absent();
+					if (!spanned.get(rowIndex * tableWidth + colIndex))
+						break;
+					spanned.clear(rowIndex * tableWidth + colIndex);
+					colIndex++;
+				}
+				grid[rowIndex * tableWidth + colIndex] = placedCount;
+				placed[placedCount++] = currentCell;
+
+				long colspan = parseSpan(currentCell, "colspan");
+				long rowspan = parseSpan(currentCell, "rowspan");
+				if (colspan == INVALID_SPAN || rowspan == INVALID_SPAN)
+					return Optional.absent();
+
+				// if colspan > 1 then skip the positions it covers
+				if (colspan > 1)
+					colIndex += (int) colspan - 1;
+
+				// if rowspan > 1 then reserve the position in the following
+				// rows (of the last column a colspan covers)
+				if (rowspan > 1) {
+					for (int i = 1; i < rowspan; i++) {
+						if (i >= tableHeight)
+							break; // ignore bad rowspans
+						if (rowIndex + i >= tableHeight || colIndex < 0
+								|| colIndex >= tableWidth)
+							return Optional.absent();
+						spanned.set((rowIndex + i) * tableWidth + colIndex);
 					}
+				}
 
-					// if rowspan > 1 then mark cells in following rows which are affected
-					if (rowspan > 1) {
-						for (int i = 1; i < rowspan; i++) {
-							if (i >= tableHeight) break; // ignore bad rowspans
+				// switch to next column
+				colIndex++;
+			}
+		}
 
-							// mark cell
-							org.jsoup.parser.Tag invalidTag = org.jsoup.parser.Tag.valueOf("p");
-							result[rowIndex+i][colIndex] = new Element(invalidTag, "");
-						}
-					}
+		return Optional.of(new TableGrid(tableHeight, tableWidth, placed,
+				grid, spanned));
+	}
 
-					// switch to next column in the result array
-					colIndex++;
-				}
-			}
+	private static final long INVALID_SPAN = Long.MIN_VALUE;
+
+	// the value of a span attribute as Integer.valueOf parses it, 1 if the
+	// attribute is missing, INVALID_SPAN if Integer.valueOf would throw
+	private static long parseSpan(Element cell, String attribute) {
+		if (!cell.hasAttr(attribute))
+			return 1;
+		String value = cell.attr(attribute);
+		int length = value.length();
+		if (length == 0)
+			return INVALID_SPAN;
+		int i = 0;
+		boolean negative = false;
+		char first = value.charAt(0);
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			if (length == 1)
+				return INVALID_SPAN;
+			i++;
 		}
-		// all irregular tables will lead to Exceptions (i.e. IndexOutOfBounds)
-		catch (Exception e) {
-			return Optional.absent();
+		long result = 0;
+		for (; i < length; i++) {
+			int digit = Character.digit(value.charAt(i), 10);
+			if (digit < 0)
+				return INVALID_SPAN;
+			result = result * 10 + digit;
+			if (result > (long) Integer.MAX_VALUE + 1)
+				return INVALID_SPAN;
 		}
-
-		return Optional.of(result);
+		if (negative)
+			return -result;
+		return result > Integer.MAX_VALUE ? INVALID_SPAN : result;
 	}
 
-	public void printTable(Element[][] table) {
+	public void printTable(TableGrid table) {
 		if (table == null) return;
 
-		System.out.println(table[0][0].text());
+		if (table.getCell(0, 0) != null)
+			System.out.println(table.getCell(0, 0).text());
 
-		int limiter = table[0].length*4+1;
+		int limiter = table.getWidth()*4+1;
 
 		for (int i = 0; i < limiter; i++) {
 			System.out.print("-");
 		}
 		System.out.println();
 
-		for (int rowIndex = 0; rowIndex < table.length; rowIndex++) {
+		for (int rowIndex = 0; rowIndex < table.getHeight(); rowIndex++) {
 			System.out.print("|");
-			for (int colIndex = 0; colIndex < table[rowIndex].length; colIndex++) {
-				if (table[rowIndex][colIndex] == null) {
+			for (int colIndex = 0; colIndex < table.getWidth(); colIndex++) {
+				if (table.getCell(rowIndex, colIndex) == null
+						&& !table.isSpanned(rowIndex, colIndex)) {
 					System.out.print("  ");
 				} else {
 					System.out.print(" X");
@@ -171,7 +208,7 @@ public class TableConvert {
 				subtables.remove(aTable);
 				if(subtables.size() == 0) {
 					System.out.println("converting table...");
-					Optional<Element[][]> result = tableConvert.toTable(aTable);
+					Optional<TableGrid> result = tableConvert.toTable(aTable);
 					if (result.isPresent())
 						tableConvert.printTable(result.get());
 					else
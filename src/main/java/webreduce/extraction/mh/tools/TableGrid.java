@@ -0,0 +1,50 @@
+package webreduce.extraction.mh.tools;
+
+import java.util.BitSet;
+
+import org.jsoup.nodes.Element;
+
+// a table converted by TableConvert. The cells are kept in the order they
+// were placed, the grid maps every position (row * width + col) to the index
+// of its cell. Positions reserved by a rowspan that no cell was placed on
+// are marked in a bitset, they count as empty cells, positions without a
+// cell and without a mark as missing cells.
+public class TableGrid {
+	// grid value of a position without a cell
+	public static final int NO_CELL = -1;
+
+	private final int height;
+	private final int width;
+	private final Element[] cells;
+	private final int[] grid;
+	private final BitSet spanned;
+
+	TableGrid(int height, int width, Element[] cells, int[] grid,
+			BitSet spanned) {
+		this.height = height;
+		this.width = width;
+		this.cells = cells;
+		this.grid = grid;
+		this.spanned = spanned;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	// the cell placed at the position, null if there is none
+	public Element getCell(int row, int col) {
+		int index = grid[row * width + col];
+		return index == NO_CELL ? null : cells[index];
+	}
+
+	// true if the position is reserved by a rowspan of a cell above and no
+	// other cell was placed on it
+	public boolean isSpanned(int row, int col) {
+		return spanned.get(row * width + col);
+	}
+}
@@ -0,0 +1,40 @@
+package webreduce.extraction.mh.tools;
+
+// summaries of all cells of a table converted by TableConvert, built once
+// per table and shared by both feature phases and the output conversion.
+// Positions without a cell are null here, positions reserved by a rowspan
+// are empty cells.
+public class TableSummary {
+	private final TableGrid table;
+	private final CellSummary[][] cells;
+
+	public TableSummary(TableGrid table) {
+		this.table = table;
+		cells = new CellSummary[table.getHeight()][];
+		for (int row = 0; row < table.getHeight(); row++) {
+			cells[row] = new CellSummary[table.getWidth()];
+			for (int col = 0; col < table.getWidth(); col++) {
+				if (table.getCell(row, col) != null)
+					cells[row][col] = new CellSummary(table.getCell(row, col));
+				else if (table.isSpanned(row, col))
+					cells[row][col] = CellSummary.EMPTY;
+			}
+		}
+	}
+
+	public TableGrid getTable() {
+		return table;
+	}
+
+	public CellSummary getCell(int row, int col) {
+		return cells[row][col];
+	}
+
+	public int getTableWidth() {
+		return table.getWidth();
+	}
+
+	public int getTableHeight() {
+		return table.getHeight();
+	}
+}